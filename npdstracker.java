@@ -5,7 +5,12 @@
 
 import java.io.*;
 import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
 import java.text.*;
 
 public class npdstracker extends Thread
@@ -33,12 +38,18 @@ public class npdstracker extends Thread
 	public static final int HTTP_ERR = 400;
 	public static final int HTTP_FORBID = 403;
 	public static final int HTTP_NOTFOUND = 404;
+	public static final int HTTP_NOTMODIFIED = 304;
 
 	public static final int kValidateTimeUnit = 60000;	// 60000 =  1 minute in milliseconds
 	public static final int kRefreshTimeUnit = 1000;	// 1000  =  1 second in milliseconds
 	public static final int kTimeout = 20000;			// 20000 = 20 seconds in milliseconds
+	public static final int kChangeLogSize = 16384;		// Registry changes remembered for QUERY SINCE
 	public static final String defaultOptionsFile = "npdstracker.ini";
 	public static final String defaultCmdFile = "npdscmd.txt";
+	// The list as written by the persister (cmdfile followed by .dat): "NPDS", the version of the
+	// format, the time it was written, the number of records, the records and a CRC32 of all that.
+	public static final int kSnapshotMagic = 0x4E504453;
+	public static final int kSnapshotVersion = 1;
 
 	// Messages
 	public static final String kRTFMStr = " Please check out the protocol before telnetting to the tracker (http://npds.free.fr/)";
@@ -49,6 +60,7 @@ public class npdstracker extends Thread
 	public static final String kWeirdPortStr = " Weird port (not an integer)";
 	public static final String kWeirdPortValueStr = " Weird port (not within 1-65535)";
 	public static final String kUnsupportedVersionStr = " This version of the protocol is not supported by this tracker";
+	public static final String kBusyStr = " Tracker is busy, please try again later";
 	
 	// Default port
 	public static final int DEFAULT_PORT = 3680;
@@ -60,11 +72,37 @@ public class npdstracker extends Thread
 	// location all of these can be set at runtime using the -o switch
 	public static int validateTime = 20;
 	public static int validateTries = 3;
+	// How many periods at most between two checks of a Newton that has been up for a while
+	public static int validateBackoff = 4;
+	// How many Newtons are checked at once, and how long a check may take (in milliseconds)
+	public static int validateConcurrency = 256;
+	public static int connectTimeout = 5000;
+	public static int readTimeout = kTimeout;
+	// How long the cmdfile may lag behind the list (in milliseconds), and after how many changes
+	// it is written anyway
+	public static int persistDelay = 1000;
+	public static int persistBatch = 100;
+	// Whether the journal is synced to the disk after each write, and after how many changes
+	// it is folded into the cmdfile
+	public static boolean journalSync = true;
+	public static int journalCompact = 1000;
+	// How long host names that resolve and that don’t are remembered (in seconds)
+	public static int dnsTTL = 300;
+	public static int dnsNegativeTTL = 60;
 	public static boolean shareEnabled = true;
 	public static String adminPass = "qwerty";
 	public static Vector kPort;
 	public static String logFile = "";
 	public static boolean logVerbose = true;
+	// How many log lines may wait to be written, and what happens to a line when there are that
+	// many: "drop" drops it, "block" waits until it can be queued
+	public static int logBuffer = 8192;
+	public static String logOverflow = "drop";
+	// How large (in bytes) and how old (in hours) the log file may get before it is renamed to
+	// logFile.1 (0 for no limit), and how many of these old files are kept
+	public static long logMaxSize = 10485760;
+	public static int logMaxAge = 168;
+	public static int logKeep = 5;
 	public static String templateFile = "";
 	public static String stylesheetFile = "";
 	public static String cmdfile = defaultCmdFile;
@@ -72,12 +110,27 @@ public class npdstracker extends Thread
 	public static String hostLink = "";
 	// Define private host string
 	public static String acceptPrivateHost = "";
+	// Connection handling: "thread" runs each connection on a thread, "virtual" runs each connection
+	// on a virtual thread (Java 21 and later), "nio" reads the command lines of every port from a
+	// single selector thread first. With platform threads, at most workerThreads connections are
+	// handled at once and at most queueDepth wait for a worker; any more are turned away. With
+	// virtual threads, each connection gets its own at once, up to virtualConnections.
+	public static String serverMode = "thread";
+	public static int workerThreads = 64;
+	public static int queueDepth = 64;
+	public static int virtualConnections = 50000;
 
 	// Runtime variables: these are the data structures and other values used by the server while it is running
-	// I put all Newton info in a single Vector because I have a semaphore for accessing it and it is easier like this.
-	public static Vector mHostInfoVector = new Vector();
+	// I put all Newton info in a single registry because I have a semaphore for accessing it and it is easier like this.
+	public static THostRegistry mHostRegistry = new THostRegistry();
 	// Identically, I put all server info in a single Vector.
 	public static Vector mSharingInfoVector = new Vector();
+	// The semaphores for the registry and this Vector. They are locks rather than monitors because a
+	// virtual thread blocked on a socket inside a synchronized block pins its carrier thread.
+	public static final ReentrantLock mHostInfoLock = new ReentrantLock();
+	public static final ReentrantLock mSharingInfoLock = new ReentrantLock();
+	// Two connections mustn’t rewrite the cmdfile at the same time.
+	public static final ReentrantLock mCmdFileLock = new ReentrantLock();
 	public static int hitcounter = 0;
 	public static int regcounter = 0;
 	// Non 0 if a validation is in progress, 0 otherwise.
@@ -88,10 +141,25 @@ public class npdstracker extends Thread
 	// Validator and Server
 	// (Victor uses a lot of public static variables, he surely has a good reason for that)
 	public static TValidator mValidator;
+	public static TProbeEngine mProbeEngine;
+	// Writes the cmdfile in the background.
+	public static TPersister mPersister;
+	// Host names resolved in the background.
+	public static final TResolver mResolver = new TResolver();
+	// Writes the log in the background (null until the options are read).
+	public static volatile TLogger mLogger;
 	
 	// Vector with all the servers out there.
 	private Vector mServers;
 
+	// Workers handling the connections of every port.
+	public static TWorkerPool mWorkers;
+
+	// The QUERY reply, encoded once per registry version.
+	private static AtomicReference mQueryReply = new AtomicReference();
+	// The SHARE reply, encoded once per version of the records registered here.
+	private static AtomicReference mShareReply = new AtomicReference();
+
 	private static DateFormat mRFCGMTFormatter;
 	static
 	{
@@ -113,15 +181,129 @@ public class npdstracker extends Thread
 	}
 	
 	// A class to validate the Newton servers
+	// Each Newton is checked once per interval, at an offset within the interval derived from its
+	// name: the checks are spread evenly instead of coming in one burst, and a given Newton is always
+	// checked at the same point of its interval. The interval is validateTime to begin with. It
+	// doubles with every successful check, up to validateBackoff periods, so that Newtons which have
+	// been up for a long time are checked less often; and it goes down to validateTime/validateTries
+	// as soon as a check fails, so that a dead Newton is still removed within about a period.
+	// The SHARE records of other trackers are still fetched once per period, by a thread of their
+	// own (see TShareRound).
 	public static class TValidator extends Thread
 	{
-		public Date	mLastCheck;
+		public volatile Date mLastCheck;
 		public Date	mNextCheck;
+		// Newtons waiting for their next check, soonest first (under mLock)
+		private PriorityQueue mQueue = new PriorityQueue( 11, new Comparator()
+			{
+				public int compare( Object inFirst, Object inSecond )
+				{
+					long theFirst = ((THostInfo) inFirst).mNextCheck;
+					long theSecond = ((THostInfo) inSecond).mNextCheck;
+					return (theFirst < theSecond) ? -1 : ((theFirst == theSecond) ? 0 : 1);
+				}
+			} );
+		private ReentrantLock mLock = new ReentrantLock();
+		private Condition mWakeUp = mLock.newCondition();
+		
+		// Queues the next check of a Newton, unless it is already queued or no longer registered.
+		public void Schedule( THostInfo inInfo )
+		{
+			if ((inInfo.mStatus == -1) || inInfo.mRemoved)
+				return;
+			
+			long thePeriod = Interval( inInfo );
+			// (names such as 10.0.0.1 and 10.0.0.2 hash to neighbouring values, so I stir the bits)
+			int theHash = inInfo.mName.hashCode() * 0x9E3779B9;
+			theHash ^= (theHash >>> 16);
+			long theOffset = (theHash & 0x7FFFFFFF) % thePeriod;
+			long now = System.currentTimeMillis();
+			long theNextCheck = (now / thePeriod) * thePeriod + theOffset;
+			if (theNextCheck <= now)
+				theNextCheck += thePeriod;
+			
+			mLock.lock();
+			try
+			{
+				if (inInfo.mQueued)
+					return;
+				inInfo.mNextCheck = theNextCheck;
+				inInfo.mQueued = true;
+				mQueue.add( inInfo );
+				if (mQueue.peek() == inInfo)
+					mWakeUp.signal();
+			} finally {
+				mLock.unlock();
+			}
+		}
+
+		// Returns the time between two checks of a Newton, in milliseconds.
+		// A Newton that dies is found down within theFactor periods, then removed after validateTries
+		// checks a fraction of a period apart: theFactor never goes past validateTries, so that this
+		// never takes longer than when every Newton was checked once per period.
+		private static long Interval( THostInfo inInfo )
+		{
+			long thePeriod = Math.max( 1, npdstracker.validateTime ) * (long) npdstracker.kValidateTimeUnit;
+			int theTries = Math.max( 1, npdstracker.validateTries );
+			if (inInfo.mStatus > 0)
+				return Math.max( 1, thePeriod / theTries );
+
+			long theMaxFactor = Math.min( npdstracker.validateBackoff, theTries );
+			long theFactor = 1;
+			for (int index_i = 1; (index_i < inInfo.mUpStreak) && (theFactor * 2 <= theMaxFactor); index_i++)
+				theFactor *= 2;
+			return thePeriod * theFactor;
+		}
 
+		// The thread that drops the Newtons that have been down too long and fetches the SHARE
+		// records once per period. Trackers may take up to connectTimeout + readTimeout to answer,
+		// and the checks of the Newtons mustn’t wait for them. A round starts when the last one is
+		// over, so two rounds never overlap.
+		private class TShareRound extends Thread
+		{
+			TShareRound ()
+			{
+				super( "TShareRound" );
+				setDaemon( true );
+			}
+			
+			public void run ()
+			{
+				try {
+					while (true)
+					{
+						try
+						{
+							long theWait = mNextCheck.getTime() - System.currentTimeMillis();
+							if (theWait > 0)
+								Thread.sleep( theWait );
+							
+							// get the current date
+							mLastCheck = new Date();
+							mNextCheck.setTime(mLastCheck.getTime() + (npdstracker.validateTime * npdstracker.kValidateTimeUnit));
+							npdstracker.validateShares();
+						} catch (InterruptedException e) {
+							// Ignore any interrupt.
+						}
+					}	// while (true)
+				} catch (Exception e)
+				{
+					// Oops, some exception occured.
+					npdstracker.logMessage("TShareRound: Exception " + e + " occurred");
+				}
+			}
+		}
+		
 		public void run ()
 		{
-			// Initialization of variables to know when to check the registered Newtons.
+			// Initialization of variables to know when to fetch the SHARE records.
 			mNextCheck = new Date();
+			new TShareRound().start();
+			
+			// Newtons registered before I started (from the cmdfile).
+			THostInfo[] theHosts = npdstracker.mHostRegistry.Snapshot();
+			for (int index_i = 0; index_i < theHosts.length; index_i++)
+				Schedule( theHosts[index_i] );
 
 			// I’m looping forever. (I will be killed by the application as it quits).
 			
@@ -130,23 +312,37 @@ public class npdstracker extends Thread
 				{
 					try 
 					{
-						Date now = new Date();
-						
-						if (now.after(mNextCheck))
+						// Take the Newtons that are due, or sleep until the next one is.
+						Vector theDue = new Vector();
+						long now = System.currentTimeMillis();
+						mLock.lock();
+						try
 						{
-							// get the current date
-							mLastCheck = new Date();
-							mNextCheck.setTime(mLastCheck.getTime() + (npdstracker.validateTime * npdstracker.kValidateTimeUnit));
-							npdstracker.validateServers();
+							while (!mQueue.isEmpty() && (((THostInfo) mQueue.peek()).mNextCheck <= now))
+							{
+								THostInfo theInfo = (THostInfo) mQueue.poll();
+								theInfo.mQueued = false;
+								theDue.addElement( theInfo );
+							}
+							
+							if (theDue.isEmpty())
+							{
+								if (mQueue.isEmpty())
+									mWakeUp.await();
+								else
+									mWakeUp.await( ((THostInfo) mQueue.peek()).mNextCheck - now, TimeUnit.MILLISECONDS );
+							}
+						} finally {
+							mLock.unlock();
 						}
 						
-						now = new Date();	// Updates the now value.
-						
-						// Let’s sleep until next check if we have to
-						
-						long timeout = mNextCheck.getTime() - now.getTime();
-						if (timeout > 0)
-							sleep( timeout );
+						// The probe engine reschedules each of them once checked.
+						for (int index_i = 0; index_i < theDue.size(); index_i++)
+						{
+							THostInfo theInfo = (THostInfo) theDue.elementAt(index_i);
+							if (!theInfo.mRemoved)
+								npdstracker.mProbeEngine.Submit( new TProbe( theInfo, null, true ) );
+						}
 					} catch (InterruptedException e) {
 						// Ignore any interrupt.
 					}
@@ -161,209 +357,2336 @@ public class npdstracker extends Thread
 
 	// ============================================================	//
 
-	// A class to handle a connection the Newton servers.
-	public static class TConnection extends Thread
+	// A class to remember how long the last checks of a Newton took, and to derive from it how long
+	// the next one may take. A Newton that usually answers in 50 ms is given 250 ms, not 20 seconds.
+	// After a timeout, the next checks are given the full connectTimeout and readTimeout again, until
+	// one succeeds, so that a Newton that got slower is not removed for that alone: it is only
+	// removed if it doesn’t answer within the time it had before these deadlines.
+	// Only the probe engine thread uses it.
+	public static class TRoundTrips
 	{
+		// How many checks I remember
+		public static final int kSamples = 8;
+		// How much slower than usual a Newton may be
+		public static final int kFactor = 4;
+		// Shortest deadline (in milliseconds)
+		public static final int kMinDeadline = 250;
+		
 		// Variables
-		private Socket mSocket;
+		private long[] mConnectTimes = new long[kSamples];
+		private long[] mReplyTimes = new long[kSamples];
+		private int mCount = 0;
+		private int mNext = 0;
+		// Timeouts in a row since the last answer
+		private int mTimeouts = 0;
 		
-		// Constructor
-		TConnection ( Socket inSocket )
+		// Remembers a successful check.
+		public void Add( long inConnectTime, long inReplyTime )
 		{
-			mSocket = inSocket;
+			mConnectTimes[mNext] = inConnectTime;
+			mReplyTimes[mNext] = inReplyTime;
+			mNext = (mNext + 1) % kSamples;
+			if (mCount < kSamples)
+				mCount++;
+			mTimeouts = 0;
 		}
 		
-		// Thread entry point
-		public void run ()
+		// Remembers that a check timed out.
+		public void Timeout()
 		{
-			try {
-				mSocket.setSoTimeout( npdstracker.kTimeout );
-			
-				BufferedReader in = null;
-				PrintWriter out = null;
-				String result;
-				try
-				{
-					in = new BufferedReader( new InputStreamReader( mSocket.getInputStream() ) );
-					out = new PrintWriter(new OutputStreamWriter( mSocket.getOutputStream() ) );
-					npdstracker.logMessage("Handling connection from " + mSocket.getInetAddress().toString() );
-					result = in.readLine();
-					// pass the command to the query processor
-					if (result != null)
-					{
-						result.toUpperCase();
-						npdstracker.ProcessQuery( result, in, out, mSocket );
-					}
-				}
-				catch (Exception e) 
-				{
-					System.err.println( "Look! Some exception!" );
-					System.err.println( e );
-					
-					// Easier than calling System.getProperty("line.separator")
-				}
+			if (mTimeouts < 16)
+				mTimeouts++;
+		}
+		
+		public long ConnectDeadline()
+		{
+			return Deadline( mConnectTimes, npdstracker.connectTimeout );
+		}
+		
+		public long ReplyDeadline()
+		{
+			return Deadline( mReplyTimes, npdstracker.readTimeout );
+		}
+		
+		// 90th percentile of the times times kFactor, between kMinDeadline and inMax (inMax itself
+		// since the last timeout).
+		private long Deadline( long[] inTimes, long inMax )
+		{
+			if ((mCount == 0) || (mTimeouts > 0))
+				return inMax;
 			
-				npdstracker.logMessage("Closing connection from " + mSocket.getInetAddress().toString());
-				mSocket.close();
-				System.gc();
-			} catch (Exception e)
-			{
-				// Oops, some exception occured.
-				npdstracker.logMessage("TConnection: Exception " + e + " occurred");
-			}
+			long[] theTimes = new long[mCount];
+			System.arraycopy( inTimes, 0, theTimes, 0, mCount );
+			Arrays.sort( theTimes );
+			long theDeadline = Math.max( kMinDeadline, theTimes[(mCount * 9 + 9) / 10 - 1] * kFactor );
+			return Math.min( inMax, theDeadline );
 		}
 	}
 
 	// ============================================================	//
 
-	// A class for servers that listen to Newtons.
-	public static class TServer extends Thread
+	// A class for a host name as known by the TResolver.
+	public static class TResolvedHost
 	{
 		// Variables
-		private ServerSocket mServer;
+		public String mHost;
+		// Whether I have heard back from the DNS at least once
+		public volatile boolean mResolved = false;
+		// The address (null if the name doesn’t resolve), or the name for a reverse lookup
+		public volatile InetAddress mAddress;
+		public volatile String mHostName;
+		// When I have to ask again (System.currentTimeMillis() time)
+		public volatile long mExpires;
+		// Since when the name hasn’t resolved (0 if it did the last time)
+		public volatile long mFailingSince = 0;
+		// Whether the DNS is being asked right now
+		public AtomicBoolean mResolving = new AtomicBoolean();
+		// Probes waiting for the first answer
+		public ConcurrentLinkedQueue mWaiting = new ConcurrentLinkedQueue();
+		// Counted down with the first answer (for the threads waiting for it)
+		public CountDownLatch mFirstAnswer = new CountDownLatch( 1 );
 		
 		// Constructor
-		TServer( int inPort ) throws IOException
+		TResolvedHost ( String inHost )
 		{
-			mServer = new ServerSocket( inPort );
+			mHost = inHost;
 		}
+	}
+
+	// ============================================================	//
+
+	// A class to resolve host names without ever making anybody wait for the DNS.
+	// The answers are kept dnsTTL seconds (dnsNegativeTTL seconds for names that don’t resolve).
+	// A name that isn’t known yet or that has expired is resolved by a few threads of my own, and
+	// in the meantime the callers get what I knew (or nothing at all the first time).
+	public static class TResolver
+	{
+		// Threads asking the DNS
+		public static final int kThreads = 4;
+		// Above this many names, I forget those that have expired
+		public static final int kMaxEntries = 4096;
 		
-		// Thread entry point
-		public void run ()
+		// Variables
+		private ConcurrentHashMap mHosts = new ConcurrentHashMap();
+		private ConcurrentHashMap mReverse = new ConcurrentHashMap();
+		// How many names each map may hold before I forget the expired ones: twice as many as
+		// were left by the last time, so that each new name costs the same on average
+		private AtomicInteger mHostsSweepAt = new AtomicInteger( kMaxEntries );
+		private AtomicInteger mReverseSweepAt = new AtomicInteger( kMaxEntries );
+		private ThreadPoolExecutor mExecutor;
+		
+		// Constructor
+		TResolver ()
 		{
-			// I’m looping waiting for connections.
-			while (true)
+			mExecutor = new ThreadPoolExecutor(
+				kThreads, kThreads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue(), new ThreadFactory()
+				{
+					public Thread newThread( Runnable inRunnable )
+					{
+						Thread theThread = new Thread( inRunnable, "TResolver" );
+						theThread.setDaemon( true );
+						return theThread;
+					}
+				} );
+			mExecutor.allowCoreThreadTimeOut( true );
+		}
+		
+		// Returns what I know about a host name, and asks the DNS again if it is not known yet or
+		// has expired. Never blocks.
+		public TResolvedHost Lookup( String inHost )
+		{
+			return Lookup( mHosts, mHostsSweepAt, inHost, false );
+		}
+		
+		// Waits (inTimeout milliseconds at most) for the first answer of the DNS about a name.
+		// Returns whether it came.
+		public boolean Await( TResolvedHost inEntry, long inTimeout )
+		{
+			if (inEntry.mResolved)
+				return true;
+			try {
+				return inEntry.mFirstAnswer.await( inTimeout, TimeUnit.MILLISECONDS );
+			} catch (InterruptedException e) {
+				return inEntry.mResolved;
+			}
+		}
+		
+		// Returns the name of an address if I know it, its numeric form otherwise. Never blocks.
+		public String HostName( InetAddress inAddress )
+		{
+			TResolvedHost theEntry = Lookup( mReverse, mReverseSweepAt, inAddress.getHostAddress(), true );
+			String theName = theEntry.mHostName;
+			if (theName == null)
+				theName = inAddress.getHostAddress();
+			return theName;
+		}
+		
+		// Queues a probe until the host name of its Newton has been resolved once, and returns
+		// false. Returns true if it has already been resolved.
+		public boolean Wait( TResolvedHost inEntry, TProbe inProbe )
+		{
+			if (inEntry.mResolved)
+				return true;
+			inEntry.mWaiting.add( inProbe );
+			// The answer may have arrived in the meantime: then I do what Resolve would have done.
+			if (inEntry.mResolved)
+				Release( inEntry );
+			return false;
+		}
+		
+		private TResolvedHost Lookup( ConcurrentHashMap inMap, AtomicInteger inSweepAt, String inHost, boolean isReverse )
+		{
+			TResolvedHost theEntry = (TResolvedHost) inMap.get( inHost );
+			if (theEntry == null)
 			{
-				try 
+				int theSweepAt = inSweepAt.get();
+				// (only one thread sweeps: the others go on meanwhile)
+				if ((inMap.size() >= theSweepAt) && inSweepAt.compareAndSet( theSweepAt, Integer.MAX_VALUE ))
 				{
-					// Wait until a connection arrives.
-					Socket s = mServer.accept();
-				
-					// Let a connection object handle the socket
-					TConnection thisConnection = new TConnection( s );
-					thisConnection.start();
-
-				} catch (Exception e)
+					Sweep( inMap );
+					inSweepAt.set( Math.max( kMaxEntries, inMap.size() * 2 ) );
+				}
+				theEntry = new TResolvedHost( inHost );
+				TResolvedHost theOther = (TResolvedHost) inMap.putIfAbsent( inHost, theEntry );
+				if (theOther != null)
+					theEntry = theOther;
+			}
+			
+			if ((!theEntry.mResolved || (theEntry.mExpires <= System.currentTimeMillis()))
+				&& theEntry.mResolving.compareAndSet( false, true ))
+			{
+				// Numeric addresses don’t need the DNS.
+				if (!isReverse && IsNumeric( inHost ))
 				{
-					// Oops, some exception occured.
-					npdstracker.logMessage("TServer: Exception " + e + " occurred");
+					Resolve( theEntry, false );
+					return theEntry;
+				}
+				
+				final TResolvedHost theFinalEntry = theEntry;
+				final boolean isFinalReverse = isReverse;
+				try {
+					mExecutor.execute( new Runnable()
+					{
+						public void run ()
+						{
+							Resolve( theFinalEntry, isFinalReverse );
+						}
+					} );
+				} catch (RejectedExecutionException theREE) {
+					theEntry.mResolving.set( false );
 				}
 			}
+			return theEntry;
 		}
-	}
-
-	// ============================================================	//
-	// * THostInfo *
-	// ============================================================	//
-	// A class to handle a data about Newton servers
-	// I need such a class because of semaphores (locks).
-
-	public static class THostInfo
-	{
-		// The Newton’s host name (including IP)
-		public String mName;	// The string as shown in the logs and in the table.
-		public String mHost;	// The host name only (used to check the server)
-		public int mPort;		// The port only (default is 80)
-		// Unique ID of the Newton (not currently used)
-		public String mHash;
-		// Plain text description of the Newton
-		public String mDesc;
-		// Time this Newton was last validates (string in RFC format)
-		public String mLastValidation;
-		// Current status of this Newton: 0 is up, any other number is the number
-		// of unsuccessful attempts made to validate, -1 is a SHARE record
-		public int mStatus;
-		// Unused yet. Because if a tracker dies, I may need to warn the Newton and
-		// tell it that personally, I am up. (Sounds cool, doesn’t it?)
-		public TServerInfo mServer;
-	}
-
-	// ============================================================	//
-	// * TServerInfo *
-	// ============================================================	//
-	// A class to handle a data about other tracker servers
-	// I need such a class because of semaphores (locks).
-	public static class TServerInfo
-	{
-		// List of external trackers to get data from
-		public String mHost;
-		public String mPort;
-	}
-
-	//////////////////////////////////////////////////////////////////////////////
-	//	UTILITY FUNCTIONS
-	//////////////////////////////////////////////////////////////////////////////
-	
-	// ====================================================================	//
-	// * void logMessage( String ) [static]
-	// ====================================================================	//
-	// Sends a message to the System.out or the log file, if specified
 		
-	public static void logMessage(String message)
-	{
-		if (logVerbose)
+		// Asks the DNS (on one of my threads).
+		private void Resolve( TResolvedHost inEntry, boolean isReverse )
 		{
-			Date theDate = new Date();
-			if (logFile.equals(""))
-				System.out.println(theDate.toString() + "   " + message);
+			InetAddress theAddress = null;
+			String theHostName = null;
+			try {
+				theAddress = InetAddress.getByName( inEntry.mHost );
+				if (isReverse)
+					theHostName = theAddress.getHostName();
+			} catch (UnknownHostException theException) {
+				// It doesn’t resolve.
+			}
+			
+			long now = System.currentTimeMillis();
+			long theTTL = ((theAddress == null) ? npdstracker.dnsNegativeTTL : npdstracker.dnsTTL) * 1000L;
+			if (theAddress != null)
+			{
+				inEntry.mFailingSince = 0;
+				inEntry.mAddress = theAddress;
+				if (theHostName != null)
+					inEntry.mHostName = theHostName;
+			}
 			else
 			{
-				try {
-					FileWriter outlogFile = new FileWriter(logFile, true);
-					outlogFile.write(theDate.toString() + "   " + message + "\r\n");
-					outlogFile.flush();
-					outlogFile.close();
-				} catch (IOException e) {System.out.println(theDate.toString() + "   FATAL - can’t write to log file: " + logFile);}
+				// A name that doesn’t resolve anymore is still given its last address until it has
+				// failed for a whole dnsTTL: so a DNS hiccup doesn’t remove anybody, but a Newton
+				// whose name is gone is no longer checked at an address that may be somebody else’s.
+				if (inEntry.mFailingSince == 0)
+					inEntry.mFailingSince = now;
+				if (now - inEntry.mFailingSince >= npdstracker.dnsTTL * 1000L)
+					inEntry.mAddress = null;
 			}
+			inEntry.mExpires = now + theTTL;
+			inEntry.mResolved = true;
+			inEntry.mResolving.set( false );
+			inEntry.mFirstAnswer.countDown();
+			Release( inEntry );
 		}
-	}
-
-	// ====================================================================	//
-	// * int QueryRecord( String ) [static, private]
-	// ====================================================================	//
-	// Given a name, returns the host index or -1 if it cannot be found.
-
-	private static int QueryRecord (String host)
-	{
-		// Looks for a host with a given name.
-		// Searches the mHostInfoVector list and returns an index or -1
-		int index_i;
 		
-		synchronized (mHostInfoVector)
+		// Hands the probes that waited for an answer back to the probe engine.
+		private void Release( TResolvedHost inEntry )
 		{
-			for (index_i = 0; index_i < mHostInfoVector.size(); index_i++)
+			TProbe theProbe;
+			while ((theProbe = (TProbe) inEntry.mWaiting.poll()) != null)
+				npdstracker.mProbeEngine.Resolved( theProbe, inEntry );
+		}
+		
+		// Returns true if the host is a numeric IPv4 address.
+		private static boolean IsNumeric( String inHost )
+		{
+			if (inHost.length() == 0)
+				return false;
+			for (int index_i = 0; index_i < inHost.length(); index_i++)
 			{
-				THostInfo theInfo = (THostInfo) mHostInfoVector.elementAt(index_i);
-				if (host.equals(theInfo.mName))
-					return index_i;
+				char theChar = inHost.charAt(index_i);
+				if (((theChar < '0') || (theChar > '9')) && (theChar != '.'))
+					return false;
+			}
+			return true;
+		}
+		
+		// Forgets the names that have expired.
+		private void Sweep( ConcurrentHashMap inMap )
+		{
+			long now = System.currentTimeMillis();
+			Iterator theEntries = inMap.values().iterator();
+			while (theEntries.hasNext())
+			{
+				TResolvedHost theEntry = (TResolvedHost) theEntries.next();
+				if (theEntry.mResolved && (theEntry.mExpires <= now) && theEntry.mWaiting.isEmpty())
+					theEntries.remove();
 			}
 		}
-		return -1;
 	}
 
-	// ====================================================================	//
-	// * void ReturnCode( int, String, PrintWriter ) [static, private]
-	// ====================================================================	//
-	// Given a code and a message, outputs a NPDS/TP status code line.
+	// ============================================================	//
 
-	private static void ReturnCode(int codetype, String message, PrintWriter out)
+	// A class to write the changes to the list in the background. Each change is a line appended
+	// to the journal (the cmdfile followed by .journal):
+	// [REGUP] <host[:port]> <description>
+	// [REGDN] <host[:port]>
+	// [STATUS] <host[:port]> <status> <last validation>
+	// so that a change costs the same whatever the size of the list. (A [STATUS] line is only
+	// written when the status changes.) The lines are written (and synced, if journalSync)
+	// persistDelay milliseconds after the first of them, or as soon as there are persistBatch of
+	// them, so that a burst of changes costs one write. After journalCompact lines (or
+	// kCompactFactor lines per Newton, if that is more), the whole list is written to the snapshot (cmdfile followed by .dat, a temporary file
+	// that is then renamed, so that it is never left half written) and the journal starts again
+	// from scratch. The snapshot it replaces is kept (cmdfile followed by .dat.1). At startup, the
+	// snapshot (or the previous one, if it can’t be read) then the journal are read again.
+	public static class TPersister extends Thread
 	{
-		out.print(codetype);
-		out.flush();
-		if ((codetype == HTTP_OK) || (codetype == NPDS_OK))
+		// How many journal lines per Newton at most (if that is more than journalCompact)
+		public static final int kCompactFactor = 2;
+		
+		// Variables
+		private ReentrantLock mLock = new ReentrantLock();
+		private Condition mWakeUp = mLock.newCondition();
+		// Lines not written yet, and when the first of them came (under mLock)
+		private LinkedList mPending = new LinkedList();
+		private long mFirstPending;
+		// The journal, and how many lines it has (under mCmdFileLock)
+		private File mJournalFile;
+		private FileOutputStream mJournalStream;
+		private Writer mJournal;
+		private int mJournalLines = 0;
+		
+		// Constructor
+		TPersister ()
 		{
-			out.print(" OK" + message + "\r\n");
-			out.flush();
+			setDaemon( true );
+			mJournalFile = new File( npdstracker.cmdfile + ".journal" );
 		}
-		else if (codetype == HTTP_ERR)
+		
+		// Queues a line for the journal.
+		public void Record( String inLine )
 		{
-			out.print(" Bad Request" + message + "\r\n");
-			out.flush();
+			mLock.lock();
+			try
+			{
+				if (mPending.isEmpty())
+				{
+					mFirstPending = System.currentTimeMillis();
+					mWakeUp.signal();
+				}
+				mPending.addLast( inLine );
+				if (mPending.size() == npdstracker.persistBatch)
+					mWakeUp.signal();
+			} finally {
+				mLock.unlock();
+			}
 		}
-		else if (codetype == HTTP_NOTFOUND)
+		
+		// Writes the whole list to the snapshot and empties the journal (at startup, before the
+		// journal is written to).
+		public void Compact()
 		{
-			out.print(" File Not Found" + message + "\r\n");
-			out.flush();
+			npdstracker.mCmdFileLock.lock();
+			try
+			{
+				CompactLocked();
+			} finally {
+				npdstracker.mCmdFileLock.unlock();
+			}
+		}
+		
+		// Writes the pending lines now (HALT).
+		public void Flush()
+		{
+			Write( Take() );
+		}
+		
+		public void run ()
+		{
+			// I’m looping forever. (I will be killed by the application as it quits).
+			while (true)
+			{
+				try
+				{
+					mLock.lock();
+					try
+					{
+						while (true)
+						{
+							long theWait = (mFirstPending + npdstracker.persistDelay) - System.currentTimeMillis();
+							if (!mPending.isEmpty() && ((mPending.size() >= npdstracker.persistBatch) || (theWait <= 0)))
+								break;
+							if (mPending.isEmpty())
+								mWakeUp.await();
+							else
+								mWakeUp.await( theWait, TimeUnit.MILLISECONDS );
+						}
+					} finally {
+						mLock.unlock();
+					}
+					
+					Write( Take() );
+				} catch (InterruptedException e) {
+					// Ignore any interrupt.
+				} catch (Exception e) {
+					// Oops, some exception occured.
+					npdstracker.logMessage("TPersister: Exception " + e + " occurred");
+				}
+			}
+		}
+		
+		private LinkedList Take()
+		{
+			mLock.lock();
+			try
+			{
+				LinkedList theLines = mPending;
+				mPending = new LinkedList();
+				return theLines;
+			} finally {
+				mLock.unlock();
+			}
+		}
+		
+		// Appends lines to the journal (one sync for all of them), and compacts it if it is long.
+		private void Write( LinkedList inLines )
+		{
+			if (inLines.isEmpty())
+				return;
+			
+			npdstracker.mCmdFileLock.lock();
+			try
+			{
+				if (mJournal == null)
+				{
+					mJournalStream = new FileOutputStream( mJournalFile, true );
+					mJournal = new BufferedWriter( new OutputStreamWriter( mJournalStream ) );
+				}
+				Iterator theLines = inLines.iterator();
+				while (theLines.hasNext())
+					mJournal.write( (String) theLines.next() + "\r\n" );
+				mJournal.flush();
+				if (npdstracker.journalSync)
+					mJournalStream.getFD().sync();
+				mJournalLines += inLines.size();
+				
+				// The list has already seen these changes (and maybe later ones, which are still
+				// pending: replaying them again from the new journal does no harm).
+				// A snapshot costs as much as the list is long: the journal may hold kCompactFactor
+				// lines per Newton before one is written, so that each line costs the same on average.
+				if (mJournalLines >= Math.max( npdstracker.journalCompact, kCompactFactor * npdstracker.mHostRegistry.size() ))
+					CompactLocked();
+			} catch (IOException e) {
+				npdstracker.logMessage("TPersister: Can’t write to journal " + mJournalFile + " (" + e + ")");
+			} finally {
+				npdstracker.mCmdFileLock.unlock();
+			}
+		}
+		
+		private void CompactLocked()
+		{
+			// The snapshot first: if I die in between, the journal is read again on top of it,
+			// which gives the same list.
+			if (!npdstracker.writeSnapshot())
+				return;
+			try {
+				if (mJournal != null)
+					mJournal.close();
+				mJournalStream = new FileOutputStream( mJournalFile, false );
+				mJournal = new BufferedWriter( new OutputStreamWriter( mJournalStream ) );
+				mJournalLines = 0;
+			} catch (IOException e) {
+				npdstracker.logMessage("TPersister: Can’t empty journal " + mJournalFile + " (" + e + ")");
+				mJournal = null;
+			}
+		}
+	}
+
+	// ============================================================	//
+
+	// A class to write the log in the background, so that nobody waits for the disk to log a line.
+	// logMessage puts the lines in a ring of logBuffer slots without taking any lock: each caller
+	// claims the next slot by moving mHead on, then fills it. This thread takes the lines out in
+	// order, as soon as they are filled, and writes all those it finds at once to the log file,
+	// which stays open. When the ring is full, the line is dropped (and how many were is logged
+	// later), or, if logOverflow is block, the caller waits for a slot to be freed.
+	// Before a write would make the log file larger than logMaxSize, or once it has been open for
+	// logMaxAge hours, I rename it to logFile.1 (logFile.1 to logFile.2 and so on, up to logKeep)
+	// and start a new one. As I’m the only one to write to it, nothing is lost in between.
+	public static class TLogger extends Thread
+	{
+		// How long I sleep at most when there is nothing to write (in milliseconds)
+		public static final int kIdleWait = 1000;
+		// Largest write to the log file (in bytes)
+		public static final int kBatchBytes = 64 * 1024;
+		
+		// Variables
+		private final AtomicReferenceArray mSlots;
+		private final int mMask;
+		private final boolean mBlock;
+		// Next slot to claim (by the callers), next slot to take out (by me only), and the
+		// slot up to which the lines are written (for Flush)
+		private final AtomicLong mHead = new AtomicLong();
+		private volatile long mTail = 0;
+		private volatile long mWritten = 0;
+		private final AtomicLong mDropped = new AtomicLong();
+		// Whether I’m parked, waiting for lines
+		private volatile boolean mIdle = false;
+		// The log file, open since the first write, and when it was started (by me only)
+		private String mFileName;
+		private FileChannel mChannel;
+		private long mOpened;
+		// Whether the log file couldn’t be renamed (I don’t try again until it is another one)
+		private boolean mCantRotate = false;
+		private ByteBuffer mBuffer = ByteBuffer.allocate( kBatchBytes );
+		
+		// Constructor
+		TLogger ( int inSlots, boolean inBlock )
+		{
+			setDaemon( true );
+			setName( "TLogger" );
+			int theSize = 1;
+			while (theSize < inSlots)
+				theSize <<= 1;
+			mSlots = new AtomicReferenceArray( theSize );
+			mMask = theSize - 1;
+			mBlock = inBlock;
+		}
+		
+		// Queues a line for the log.
+		public void Log( String inLine )
+		{
+			long theSlot;
+			while (true)
+			{
+				theSlot = mHead.get();
+				if (theSlot - mTail >= mSlots.length())
+				{
+					// I can’t wait for myself.
+					if (!mBlock || (Thread.currentThread() == this))
+					{
+						mDropped.incrementAndGet();
+						return;
+					}
+					LockSupport.unpark( this );
+					LockSupport.parkNanos( 100000 );
+					continue;
+				}
+				if (mHead.compareAndSet( theSlot, theSlot + 1 ))
+					break;
+			}
+			mSlots.set( (int) theSlot & mMask, inLine );
+			if (mIdle)
+				LockSupport.unpark( this );
+		}
+		
+		// Waits (a few seconds at most) until the lines logged so far are written (HALT, LOGS).
+		public void Flush()
+		{
+			long theTarget = mHead.get();
+			long theDeadline = System.currentTimeMillis() + 5000;
+			while ((mWritten < theTarget) && (System.currentTimeMillis() < theDeadline))
+			{
+				LockSupport.unpark( this );
+				LockSupport.parkNanos( 1000000 );
+			}
+		}
+		
+		public void run ()
+		{
+			// I’m looping forever. (I will be killed by the application as it quits).
+			while (true)
+			{
+				try
+				{
+					long theDropped = mDropped.getAndSet( 0 );
+					if (theDropped > 0)
+						Append( npdstracker.StampLine( theDropped + " log messages dropped (the log buffer was full)" ) );
+					
+					String theLine;
+					boolean theFound = false;
+					while ((theLine = Take()) != null)
+					{
+						Append( theLine );
+						theFound = true;
+					}
+					Write();
+					mWritten = mTail;
+					
+					if (!theFound)
+					{
+						// Nothing to write: I sleep until a line comes. (The line might have
+						// come just before I said so, hence the look at the slot.)
+						mIdle = true;
+						if (mSlots.get( (int) mTail & mMask ) == null)
+							LockSupport.parkNanos( this, kIdleWait * 1000000L );
+						mIdle = false;
+					}
+				} catch (Exception e) {
+					// Oops, some exception occured.
+					Error("TLogger: Exception " + e + " occurred");
+				}
+			}
+		}
+		
+		// Takes the next line out of the ring, or returns null if it isn’t filled yet.
+		private String Take()
+		{
+			int theIndex = (int) mTail & mMask;
+			String theLine = (String) mSlots.get( theIndex );
+			if (theLine != null)
+			{
+				// Emptied before it is given back.
+				mSlots.set( theIndex, null );
+				mTail = mTail + 1;
+			}
+			return theLine;
+		}
+		
+		private void Append( String inLine ) throws IOException
+		{
+			byte[] theBytes = (inLine + "\r\n").getBytes();
+			if (theBytes.length > mBuffer.remaining())
+				Write();
+			if (theBytes.length > mBuffer.remaining())
+				WriteBytes( ByteBuffer.wrap( theBytes ) );
+			else
+				mBuffer.put( theBytes );
+		}
+		
+		private void Write() throws IOException
+		{
+			if (mBuffer.position() == 0)
+				return;
+			mBuffer.flip();
+			WriteBytes( mBuffer );
+			mBuffer.clear();
+		}
+		
+		private void WriteBytes( ByteBuffer inBytes )
+		{
+			if (npdstracker.logFile.equals(""))
+			{
+				System.out.write( inBytes.array(), inBytes.position(), inBytes.remaining() );
+				System.out.flush();
+				return;
+			}
+			try {
+				if ((mChannel != null) && !npdstracker.logFile.equals( mFileName ))
+				{
+					Close();
+					mCantRotate = false;
+				}
+				if (mChannel == null)
+					Open();
+				if (RotationDue( inBytes.remaining() ))
+				{
+					Rotate();
+					Open();
+				}
+				while (inBytes.hasRemaining())
+					mChannel.write( inBytes );
+			} catch (IOException e) {
+				Error("FATAL - can’t write to log file: " + npdstracker.logFile + " (" + e + ")");
+				// (opened again with the next lines)
+				Close();
+			}
+		}
+		
+		// Closes the log file, if it is open. (Errors don’t matter: it is given up anyway.)
+		private void Close()
+		{
+			if (mChannel == null)
+				return;
+			try {
+				mChannel.close();
+			} catch (IOException e) {
+				// Never mind.
+			}
+			mChannel = null;
+		}
+		
+		// Reports a problem with the log itself: not through the log, obviously, but on System.out.
+		private static void Error( String inMessage )
+		{
+			System.out.println( npdstracker.StampLine( inMessage ) );
+		}
+		
+		private void Open() throws IOException
+		{
+			mFileName = npdstracker.logFile;
+			mChannel = new FileOutputStream( mFileName, true ).getChannel();
+			mOpened = Started( mFileName );
+		}
+		
+		// Returns when a log file was started, so that its age counts across restarts: the date
+		// of its first line (each line starts with one), or when it was created if that can’t
+		// be read, or now if it is a new file.
+		private static long Started( String inFileName )
+		{
+			File theFile = new File( inFileName );
+			if (theFile.length() > 0)
+			{
+				try {
+					BufferedReader theReader = new BufferedReader( new FileReader( theFile ) );
+					try {
+						String theLine = theReader.readLine();
+						int theEnd = (theLine == null) ? -1 : theLine.indexOf( "   " );
+						if (theEnd > 0)
+							return new SimpleDateFormat( "EEE MMM dd HH:mm:ss zzz yyyy", Locale.US )
+								.parse( theLine.substring( 0, theEnd ) ).getTime();
+					} finally {
+						theReader.close();
+					}
+				} catch (Exception e) {
+					// Not one of mine, or unreadable: see below.
+				}
+				try {
+					return java.nio.file.Files.readAttributes( theFile.toPath(),
+						java.nio.file.attribute.BasicFileAttributes.class ).creationTime().toMillis();
+				} catch (IOException e) {
+					// Never mind.
+				}
+			}
+			return System.currentTimeMillis();
+		}
+		
+		// Whether the log file has to be rotated before inLength more bytes are written to it.
+		private boolean RotationDue( int inLength ) throws IOException
+		{
+			if (mCantRotate)
+				return false;
+			long theSize = mChannel.size();
+			if (theSize == 0)
+				return false;
+			if ((npdstracker.logMaxSize > 0) && (theSize + inLength > npdstracker.logMaxSize))
+				return true;
+			return (npdstracker.logMaxAge > 0)
+				&& (System.currentTimeMillis() - mOpened >= npdstracker.logMaxAge * 3600000L);
+		}
+		
+		// Closes the log file and gives it the number 1, after the older ones (the oldest goes).
+		private void Rotate() throws IOException
+		{
+			Close();
+			File theLog = new File( mFileName );
+			if (npdstracker.logKeep <= 0)
+			{
+				if (!theLog.delete())
+					mCantRotate = true;
+			} else {
+				// (the files are deleted first, as a rename doesn’t replace a file on Windows)
+				new File( mFileName + "." + npdstracker.logKeep ).delete();
+				for (int theIndex = npdstracker.logKeep - 1; theIndex > 0; theIndex--)
+					new File( mFileName + "." + theIndex ).renameTo( new File( mFileName + "." + (theIndex + 1) ) );
+				if (!theLog.renameTo( new File( mFileName + ".1" ) ))
+					mCantRotate = true;
+			}
+			if (mCantRotate)
+				Error("Can’t rotate the log file " + mFileName + ", writing on to it");
+		}
+	}
+
+	// ============================================================	//
+
+	// A class for one check of a Newton server by the TProbeEngine.
+	public static class TProbe
+	{
+		// Largest part of the reply I look at: the 202 has to be in there.
+		public static final int kReplyLength = 512;
+		
+		// Variables
+		public THostInfo mInfo;
+		public InetSocketAddress mAddress;
+		public SocketChannel mChannel;
+		public ByteBuffer mRequest;
+		// Connect deadline, then reply deadline (System.currentTimeMillis() time)
+		public long mDeadline;
+		// When I started to connect, and when the connection was made
+		public long mStarted;
+		public long mConnected;
+		// Bytes of the reply seen so far, and the last three of them
+		public int mSeen = 0;
+		public int mLastBytes = 0;
+		// Counted down when the check is over
+		private CountDownLatch mDone;
+		// Whether this is the regular check of the Newton, to be followed by the next one
+		private boolean mScheduled;
+		
+		// Constructor
+		TProbe ( THostInfo inInfo, CountDownLatch inDone, boolean inScheduled )
+		{
+			mInfo = inInfo;
+			mDone = inDone;
+			mScheduled = inScheduled;
+			
+			// Here is what I say:
+			// GET /traq/confirm.ns HTTP/1.0
+			// Host: <the host of the Newton server - used by some firewalls>
+			// User-Agent: <kUserAgentStr>
+			// Accept: text/x-npds				// this is what the client says and it should confuse any Apache webserver.
+												// Remind me to add this to the protocol.
+			mRequest = ByteBuffer.wrap( ("GET /traq/confirm.ns HTTP/1.0\r\n"
+				+ "Host: " + inInfo.mHost + "\r\n"
+				+ "User-Agent: " + npdstracker.kUserAgentStr + "\r\n"
+				+ "Accept: text/x-npds\r\n"
+				+ "\r\n").getBytes() );
+		}
+		
+		// Looks at a few more bytes of the reply. Returns true as soon as a 202 went by.
+		public boolean Scan( ByteBuffer inBytes )
+		{
+			while (inBytes.hasRemaining() && (mSeen < kReplyLength))
+			{
+				mLastBytes = ((mLastBytes << 8) | (inBytes.get() & 0xFF)) & 0xFFFFFF;
+				mSeen++;
+				if (mLastBytes == (('2' << 16) | ('0' << 8) | '2'))
+					return true;
+			}
+			return false;
+		}
+		
+		// Reports the result of the check.
+		public void Done( boolean isUp, String inWhy )
+		{
+			if (isUp)
+				npdstracker.logMessage(mInfo.mName + " is up");
+			else
+				npdstracker.logMessage(mInfo.mName + " is down (" + inWhy + ")");
+			npdstracker.ValidationResult( mInfo, isUp );
+			if (mDone != null)
+				mDone.countDown();
+			if (mScheduled)
+				npdstracker.mValidator.Schedule( mInfo );
+		}
+	}
+
+	// ============================================================	//
+
+	// A class for a single thread that checks Newton servers, as many at once as validateConcurrency
+	// allows. Connections are made without blocking, the request is written as the socket accepts
+	// it and the reply is scanned for the 202 as it arrives. The connection is closed as soon as
+	// the verdict is known.
+	public static class TProbeEngine extends Thread
+	{
+		// How long the selector sleeps at most while checks wait for their turn (in milliseconds)
+		public static final long kWaitingPoll = 50;
+		
+		// Variables
+		private Selector mSelector;
+		// Probes handed over by other threads
+		private ConcurrentLinkedQueue mSubmitted = new ConcurrentLinkedQueue();
+		// Probes waiting for their turn (engine thread only)
+		private LinkedList mWaiting = new LinkedList();
+		// The deadlines of the probes in flight, soonest first (engine thread only). When the
+		// deadline of a probe changes, the new one is queued and the old one is dropped when it
+		// comes up, so that a wakeup only looks at the deadlines that are due.
+		private PriorityQueue mDeadlines = new PriorityQueue( 64, new Comparator()
+			{
+				public int compare( Object inFirst, Object inSecond )
+				{
+					long theFirst = ((TDeadline) inFirst).mTime;
+					long theSecond = ((TDeadline) inSecond).mTime;
+					return (theFirst < theSecond) ? -1 : ((theFirst == theSecond) ? 0 : 1);
+				}
+			} );
+		private int mInFlight = 0;
+		private ByteBuffer mReadBuffer = ByteBuffer.allocate( TProbe.kReplyLength );
+		
+		// A deadline of a probe, as queued.
+		private static class TDeadline
+		{
+			public long mTime;
+			public TProbe mProbe;
+			
+			TDeadline ( long inTime, TProbe inProbe )
+			{
+				mTime = inTime;
+				mProbe = inProbe;
+			}
+		}
+		
+		// Constructor
+		TProbeEngine () throws IOException
+		{
+			mSelector = Selector.open();
+		}
+		
+		// Queues a check. If the host name has never been resolved, the check waits for the TResolver.
+		public void Submit( TProbe inProbe )
+		{
+			npdstracker.logMessage("checking " + inProbe.mInfo.mName);
+			TResolvedHost theEntry = npdstracker.mResolver.Lookup( inProbe.mInfo.mHost );
+			if (npdstracker.mResolver.Wait( theEntry, inProbe ))
+				Resolved( inProbe, theEntry );
+		}
+		
+		// Queues a check whose host name has been resolved.
+		public void Resolved( TProbe inProbe, TResolvedHost inEntry )
+		{
+			InetAddress theAddress = inEntry.mAddress;
+			if (theAddress == null)
+			{
+				inProbe.Done( false, "timeout / host not found" );
+				return;
+			}
+			
+			// Newtons registered before their name was resolved are checked now.
+			if (!inProbe.mInfo.mAddressChecked)
+			{
+				if (npdstracker.IsPrivateHost( inProbe.mInfo.mHost, theAddress ))
+				{
+					npdstracker.logMessage(inProbe.mInfo.mName + " removed. Host address is for private network.");
+					npdstracker.RemoveHost( inProbe.mInfo );
+					inProbe.Done( false, "private network" );
+					return;
+				}
+				inProbe.mInfo.mAddressChecked = true;
+			}
+			
+			inProbe.mAddress = new InetSocketAddress( theAddress, inProbe.mInfo.mPort );
+			mSubmitted.add( inProbe );
+			mSelector.wakeup();
+		}
+		
+		// Thread entry point
+		public void run ()
+		{
+			long theTimeout = 0;
+			
+			// I’m looping forever. (I will be killed by the application as it quits).
+			while (true)
+			{
+				try
+				{
+					mSelector.select( theTimeout );
+					
+					TProbe theProbe;
+					while ((theProbe = (TProbe) mSubmitted.poll()) != null)
+						mWaiting.addLast( theProbe );
+					
+					Iterator theKeys = mSelector.selectedKeys().iterator();
+					while (theKeys.hasNext())
+					{
+						SelectionKey theKey = (SelectionKey) theKeys.next();
+						theKeys.remove();
+						if (theKey.isValid())
+							Handle( theKey );
+					}
+					
+					// The checks that ended in this pass make room for the waiting ones. They are
+					// started now: if no check were left, the next select wouldn’t come back.
+					// (Starting them can end some at once, and expiring others makes room again.)
+					do {
+						while ((mInFlight < npdstracker.validateConcurrency) && !mWaiting.isEmpty())
+							Start( (TProbe) mWaiting.removeFirst() );
+						theTimeout = Expire();
+					} while ((mInFlight < npdstracker.validateConcurrency) && !mWaiting.isEmpty());
+				} catch (Exception e)
+				{
+					// Oops, some exception occured.
+					npdstracker.logMessage("TProbeEngine: Exception " + e + " occurred");
+				}
+			}
+		}
+		
+		private void Start( TProbe inProbe )
+		{
+			mInFlight++;
+			inProbe.mStarted = System.currentTimeMillis();
+			SetDeadline( inProbe, inProbe.mStarted + inProbe.mInfo.mRoundTrips.ConnectDeadline() );
+			try {
+				inProbe.mChannel = SocketChannel.open();
+				inProbe.mChannel.configureBlocking( false );
+				if (inProbe.mChannel.connect( inProbe.mAddress ))
+				{
+					inProbe.mConnected = System.currentTimeMillis();
+					SetDeadline( inProbe, inProbe.mConnected + inProbe.mInfo.mRoundTrips.ReplyDeadline() );
+					inProbe.mChannel.register( mSelector, SelectionKey.OP_WRITE, inProbe );
+				}
+				else
+					inProbe.mChannel.register( mSelector, SelectionKey.OP_CONNECT, inProbe );
+			} catch (IOException e) {
+				Finish( inProbe, null, false, "timeout / connection refused / other exception: " + e );
+			}
+		}
+		
+		private void Handle( SelectionKey inKey )
+		{
+			TProbe theProbe = (TProbe) inKey.attachment();
+			try {
+				if (inKey.isConnectable())
+				{
+					theProbe.mChannel.finishConnect();
+					theProbe.mConnected = System.currentTimeMillis();
+					SetDeadline( theProbe, theProbe.mConnected + theProbe.mInfo.mRoundTrips.ReplyDeadline() );
+					inKey.interestOps( SelectionKey.OP_WRITE );
+				}
+				else if (inKey.isWritable())
+				{
+					theProbe.mChannel.write( theProbe.mRequest );
+					if (!theProbe.mRequest.hasRemaining())
+						inKey.interestOps( SelectionKey.OP_READ );
+				}
+				else if (inKey.isReadable())
+				{
+					mReadBuffer.clear();
+					int theCount = theProbe.mChannel.read( mReadBuffer );
+					mReadBuffer.flip();
+					
+					// The result should look like this:
+					// HTTP_Version	202	foo
+					// plenty of headers
+					// CRLF CRLF
+					// npds-status: SERVER_ALIVE_WELL
+
+					// This last element isn’t in the protocol. So I accept anybody without it.
+					// I only check the 202.
+					// (maybe one day, I’ll check the content-type and the npds-status)
+					// In fact, I’m pretty laxist (please don’t repeat that) and I allow test pages served by some webserver).
+					// I look for a 202 anywhere in the first 512 bytes.
+					if (theProbe.Scan( mReadBuffer ))
+						// the server is good: update its time and status
+						Finish( theProbe, inKey, true, null );
+					else if ((theCount == -1) && (theProbe.mSeen == 0))
+						// if there was a zero-length result received, we assume the server is down
+						Finish( theProbe, inKey, false, "timeout / host not found" );
+					else if ((theCount == -1) || (theProbe.mSeen >= TProbe.kReplyLength))
+						// the server is down / has magically changed into Apache
+						Finish( theProbe, inKey, false, "bad reply" );
+				}
+			} catch (IOException e) {
+				// if there was an exception, we assume the server is down
+				Finish( theProbe, inKey, false, "timeout / connection refused / other exception: " + e );
+			}
+		}
+		
+		private void SetDeadline( TProbe inProbe, long inTime )
+		{
+			inProbe.mDeadline = inTime;
+			mDeadlines.add( new TDeadline( inTime, inProbe ) );
+		}
+		
+		// Gives up on the checks that are past their deadline.
+		// Returns how long the selector may sleep until the next deadline (0 for ever), or
+		// kWaitingPoll at most if some checks are waiting for their turn.
+		private long Expire()
+		{
+			long now = System.currentTimeMillis();
+			long theNextDeadline = Long.MAX_VALUE;
+			if (!mWaiting.isEmpty())
+				theNextDeadline = now + kWaitingPoll;
+			
+			TDeadline theDeadline;
+			while ((theDeadline = (TDeadline) mDeadlines.peek()) != null)
+			{
+				TProbe theProbe = theDeadline.mProbe;
+				// Replaced by a later deadline, or the check is over.
+				if (theDeadline.mTime != theProbe.mDeadline)
+				{
+					mDeadlines.poll();
+					continue;
+				}
+				if (theDeadline.mTime > now)
+				{
+					theNextDeadline = Math.min( theNextDeadline, theDeadline.mTime );
+					break;
+				}
+				
+				mDeadlines.poll();
+				theProbe.mInfo.mRoundTrips.Timeout();
+				SelectionKey theKey = theProbe.mChannel.keyFor( mSelector );
+				if (theProbe.mSeen == 0)
+					Finish( theProbe, theKey, false, "timeout / host not found" );
+				else
+					Finish( theProbe, theKey, false, "bad reply" );
+			}
+			
+			if (theNextDeadline == Long.MAX_VALUE)
+				return 0;
+			return Math.max( 1, theNextDeadline - now );
+		}
+		
+		private void Finish( TProbe inProbe, SelectionKey inKey, boolean isUp, String inWhy )
+		{
+			// (its queued deadline is dropped when it comes up)
+			inProbe.mDeadline = Long.MAX_VALUE;
+			if (inKey != null)
+				inKey.cancel();
+			try {
+				if (inProbe.mChannel != null)
+					inProbe.mChannel.close();
+			} catch (IOException e) {}
+			mInFlight--;
+			
+			if (isUp)
+				inProbe.mInfo.mRoundTrips.Add( inProbe.mConnected - inProbe.mStarted, System.currentTimeMillis() - inProbe.mConnected );
+			inProbe.Done( isUp, inWhy );
+		}
+	}
+
+	// ============================================================	//
+
+	// A class to handle a connection the Newton servers.
+	// It is only a Runnable so that it can run on a platform thread, a virtual thread or a worker.
+	public static class TConnection implements Runnable
+	{
+		// Variables
+		private Socket mSocket;
+		// Command line already read by the selector server (null if I have to read it myself)
+		private String mFirstLine;
+		// Bytes the selector server read past the command line (HTTP headers, admin commands)
+		private byte[] mPending;
+		
+		// Constructor
+		TConnection ( Socket inSocket )
+		{
+			mSocket = inSocket;
+		}
+		
+		// Constructor for connections whose command line was read by a TSelectorServer
+		TConnection ( Socket inSocket, String inFirstLine, byte[] inPending )
+		{
+			mSocket = inSocket;
+			mFirstLine = inFirstLine;
+			mPending = inPending;
+		}
+		
+		// Thread entry point
+		public void run ()
+		{
+			try {
+				mSocket.setSoTimeout( npdstracker.kTimeout );
+			
+				BufferedReader in = null;
+				PrintWriter out = null;
+				String result;
+				try
+				{
+					InputStream theInputStream = mSocket.getInputStream();
+					if ((mPending != null) && (mPending.length > 0))
+						theInputStream = new SequenceInputStream( new ByteArrayInputStream( mPending ), theInputStream );
+					in = new BufferedReader( new InputStreamReader( theInputStream ) );
+					out = new PrintWriter(new OutputStreamWriter( mSocket.getOutputStream() ) );
+					npdstracker.logMessage("Handling connection from " + mSocket.getInetAddress().toString() );
+					if (mFirstLine != null)
+						result = mFirstLine;
+					else
+						result = in.readLine();
+					// pass the command to the query processor
+					if (result != null)
+					{
+						result.toUpperCase();
+						npdstracker.ProcessQuery( result, in, out, mSocket );
+					}
+				}
+				catch (Exception e) 
+				{
+					System.err.println( "Look! Some exception!" );
+					System.err.println( e );
+					
+					// Easier than calling System.getProperty("line.separator")
+				}
+			
+				npdstracker.logMessage("Closing connection from " + mSocket.getInetAddress().toString());
+				mSocket.close();
+				System.gc();
+			} catch (Exception e)
+			{
+				// Oops, some exception occured.
+				npdstracker.logMessage("TConnection: Exception " + e + " occurred");
+			}
+		}
+	}
+
+	// ============================================================	//
+
+	// A class for servers that listen to Newtons.
+	public static class TServer extends Thread
+	{
+		// Variables
+		private ServerSocket mServer;
+		
+		// Constructor
+		TServer( int inPort ) throws IOException
+		{
+			mServer = new ServerSocket( inPort );
+		}
+		
+		// Thread entry point
+		public void run ()
+		{
+			// I’m looping waiting for connections.
+			while (true)
+			{
+				try 
+				{
+					// Wait until a connection arrives.
+					Socket s = mServer.accept();
+				
+					// Let a connection object handle the socket, if a worker will have it.
+					TConnection thisConnection = new TConnection( s );
+					if (!npdstracker.mWorkers.Execute( thisConnection ))
+						npdstracker.RejectConnection( s );
+
+				} catch (Exception e)
+				{
+					// Oops, some exception occured.
+					npdstracker.logMessage("TServer: Exception " + e + " occurred");
+				}
+			}
+		}
+	}
+
+	// ============================================================	//
+
+	// A class for a single thread that listens to Newtons on every port at once.
+	// Connections are accepted and their command line is read without blocking, so an idle
+	// Newton only costs a file descriptor. Complete command lines go to the mWorkers pool.
+	public static class TSelectorServer extends Thread
+	{
+		// Longest command line I’m willing to buffer for a client.
+		public static final int kMaxLineLength = 4096;
+
+		// Variables
+		private Selector mSelector;
+		private ByteBuffer mReadBuffer = ByteBuffer.allocate( kMaxLineLength );
+		private long mLastSweep = 0;
+		
+		// Constructor
+		TSelectorServer( Vector inPorts ) throws IOException
+		{
+			mSelector = Selector.open();
+			
+			for (int indexPorts = 0; indexPorts < inPorts.size(); indexPorts++)
+			{
+				int thePort = ((Integer) inPorts.elementAt(indexPorts)).intValue();
+				try {
+					ServerSocketChannel theChannel = ServerSocketChannel.open();
+					theChannel.socket().bind( new InetSocketAddress( thePort ) );
+					theChannel.configureBlocking( false );
+					theChannel.register( mSelector, SelectionKey.OP_ACCEPT );
+				} catch (IOException theIOE) {
+					npdstracker.logMessage("TSelectorServer: Cannot listen on port " + thePort + " (" + theIOE + ")");
+				}
+			}
+		}
+		
+		// Thread entry point
+		public void run ()
+		{
+			// I’m looping waiting for connections and command lines.
+			while (true)
+			{
+				try
+				{
+					mSelector.select( npdstracker.kRefreshTimeUnit );
+					
+					// Connections with a complete command line. I can only switch them back to
+					// blocking mode once their keys are gone from the selector.
+					Vector theReady = new Vector();
+					
+					Iterator theKeys = mSelector.selectedKeys().iterator();
+					while (theKeys.hasNext())
+					{
+						SelectionKey theKey = (SelectionKey) theKeys.next();
+						theKeys.remove();
+						
+						if (!theKey.isValid())
+							continue;
+						
+						if (theKey.isAcceptable())
+							Accept( theKey );
+						else if (theKey.isReadable())
+							Read( theKey, theReady );
+					}
+					
+					if (theReady.size() > 0)
+					{
+						// Flush the cancelled keys.
+						mSelector.selectNow();
+						
+						for (int indexReady = 0; indexReady < theReady.size(); indexReady++)
+							Dispatch( (TPendingLine) theReady.elementAt(indexReady) );
+					}
+					
+					ExpireIdle();
+				} catch (Exception e)
+				{
+					// Oops, some exception occured.
+					npdstracker.logMessage("TSelectorServer: Exception " + e + " occurred");
+				}
+			}
+		}
+		
+		// Accepts every pending connection on a listening channel.
+		private void Accept( SelectionKey inKey ) throws IOException
+		{
+			ServerSocketChannel theServer = (ServerSocketChannel) inKey.channel();
+			SocketChannel theChannel;
+			while ((theChannel = theServer.accept()) != null)
+			{
+				theChannel.configureBlocking( false );
+				theChannel.register( mSelector, SelectionKey.OP_READ, new TPendingLine( theChannel ) );
+			}
+		}
+		
+		// Reads what is available from a client and checks whether the command line is complete.
+		private void Read( SelectionKey inKey, Vector outReady )
+		{
+			TPendingLine thePending = (TPendingLine) inKey.attachment();
+			int theCount;
+			
+			mReadBuffer.clear();
+			try {
+				theCount = thePending.mChannel.read( mReadBuffer );
+			} catch (IOException theIOE) {
+				theCount = -1;
+			}
+			
+			if (theCount < 0)
+			{
+				// The client went away before sending anything useful.
+				Close( inKey );
+				return;
+			}
+			
+			thePending.Append( mReadBuffer.array(), theCount );
+			
+			if (thePending.HasLine())
+			{
+				inKey.cancel();
+				outReady.addElement( thePending );
+			}
+			else if (thePending.mLength > kMaxLineLength)
+			{
+				npdstracker.logMessage("Closing connection from " + thePending.mChannel.socket().getInetAddress().toString() + " (command line too long)");
+				Close( inKey );
+			}
+		}
+		
+		// Gives a connection with a complete command line to a worker.
+		private void Dispatch( TPendingLine inPending )
+		{
+			try {
+				inPending.mChannel.configureBlocking( true );
+				Socket theSocket = inPending.mChannel.socket();
+				TConnection theConnection = new TConnection( theSocket, inPending.Line(), inPending.Rest() );
+				if (!npdstracker.mWorkers.Execute( theConnection ))
+					npdstracker.RejectConnection( theSocket );
+			} catch (Exception e) {
+				npdstracker.logMessage("TSelectorServer: Exception " + e + " occurred");
+				try {
+					inPending.mChannel.close();
+				} catch (IOException theIOE) {}
+			}
+		}
+		
+		// Closes connections that didn’t send a command line within kTimeout.
+		private void ExpireIdle()
+		{
+			long now = System.currentTimeMillis();
+			if (now - mLastSweep < npdstracker.kRefreshTimeUnit)
+				return;
+			mLastSweep = now;
+			
+			Iterator theKeys = mSelector.keys().iterator();
+			while (theKeys.hasNext())
+			{
+				SelectionKey theKey = (SelectionKey) theKeys.next();
+				TPendingLine thePending = (TPendingLine) theKey.attachment();
+				if ((thePending != null) && theKey.isValid()
+					&& (now - thePending.mAccepted > npdstracker.kTimeout))
+				{
+					Close( theKey );
+				}
+			}
+		}
+		
+		private void Close( SelectionKey inKey )
+		{
+			inKey.cancel();
+			try {
+				inKey.channel().close();
+			} catch (IOException theIOE) {}
+		}
+	}
+
+	// ============================================================	//
+
+	// The bytes a TSelectorServer has read from a connection so far.
+	public static class TPendingLine
+	{
+		public SocketChannel mChannel;
+		public long mAccepted;
+		public byte[] mBytes = new byte[128];
+		public int mLength = 0;
+		
+		TPendingLine( SocketChannel inChannel )
+		{
+			mChannel = inChannel;
+			mAccepted = System.currentTimeMillis();
+		}
+		
+		public void Append( byte[] inBytes, int inCount )
+		{
+			if (mLength + inCount > mBytes.length)
+			{
+				byte[] theBytes = new byte[Math.max( mBytes.length * 2, mLength + inCount )];
+				System.arraycopy( mBytes, 0, theBytes, 0, mLength );
+				mBytes = theBytes;
+			}
+			System.arraycopy( inBytes, 0, mBytes, mLength, inCount );
+			mLength += inCount;
+		}
+		
+		private int EndOfLine()
+		{
+			for (int index_i = 0; index_i < mLength; index_i++)
+				if (mBytes[index_i] == '\n')
+					return index_i;
+			return -1;
+		}
+		
+		public boolean HasLine()
+		{
+			return (EndOfLine() != -1);
+		}
+		
+		// The command line, without its CR LF.
+		public String Line()
+		{
+			int theEnd = EndOfLine();
+			if ((theEnd > 0) && (mBytes[theEnd - 1] == '\r'))
+				theEnd--;
+			return new String( mBytes, 0, theEnd );
+		}
+		
+		// Whatever follows the command line.
+		public byte[] Rest()
+		{
+			int theStart = EndOfLine() + 1;
+			byte[] theRest = new byte[mLength - theStart];
+			System.arraycopy( mBytes, theStart, theRest, 0, theRest.length );
+			return theRest;
+		}
+	}
+
+	// ============================================================	//
+
+	// A class for the workers handling connections. The pool and its queue are bounded: when every
+	// worker is busy and the queue is full, Execute refuses the connection instead of piling it up.
+	// With virtual threads, there is no pool: each connection gets a thread of its own at once,
+	// up to a (much larger) number of connections, and any more are refused.
+	public static class TWorkerPool
+	{
+		// Variables
+		private ThreadPoolExecutor mExecutor;
+		private int mQueueDepth;
+		// Without a pool (virtual threads): the threads, and how many connections may be handled
+		private ThreadFactory mFactory;
+		private Semaphore mPermits;
+		private int mLimit;
+		// Statistics for the STATS admin command.
+		public AtomicLong mRejected = new AtomicLong();
+		public AtomicLong mStarted = new AtomicLong();
+		public AtomicLong mTotalWait = new AtomicLong();
+		public AtomicLong mLongestWait = new AtomicLong();
+		
+		// Constructor
+		TWorkerPool( int inThreads, int inQueueDepth, ThreadFactory inFactory )
+		{
+			mQueueDepth = inQueueDepth;
+			BlockingQueue theQueue;
+			if (inQueueDepth > 0)
+				theQueue = new ArrayBlockingQueue( inQueueDepth );
+			else
+				theQueue = new SynchronousQueue();
+			mExecutor = new ThreadPoolExecutor(
+				inThreads, inThreads, 60, TimeUnit.SECONDS, theQueue, inFactory );
+			// Idle workers go away, as the threads of old did.
+			mExecutor.allowCoreThreadTimeOut( true );
+			mLimit = inThreads;
+		}
+		
+		// Constructor for a thread per connection (virtual threads), up to inLimit connections
+		TWorkerPool( int inLimit, ThreadFactory inFactory )
+		{
+			mFactory = inFactory;
+			mPermits = new Semaphore( inLimit );
+			mLimit = inLimit;
+		}
+		
+		// Queues a connection for a worker. Returns false if the pool is full.
+		public boolean Execute( final TConnection inConnection )
+		{
+			final long theQueued = System.currentTimeMillis();
+			if (mPermits != null)
+			{
+				if (!mPermits.tryAcquire())
+				{
+					mRejected.incrementAndGet();
+					return false;
+				}
+				mFactory.newThread( new Runnable()
+				{
+					public void run ()
+					{
+						try {
+							Started( System.currentTimeMillis() - theQueued );
+							inConnection.run();
+						} finally {
+							mPermits.release();
+						}
+					}
+				} ).start();
+				return true;
+			}
+			try {
+				mExecutor.execute( new Runnable()
+				{
+					public void run ()
+					{
+						Started( System.currentTimeMillis() - theQueued );
+						inConnection.run();
+					}
+				} );
+			} catch (RejectedExecutionException theREE) {
+				mRejected.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+		
+		private void Started( long inWait )
+		{
+			mStarted.incrementAndGet();
+			mTotalWait.addAndGet( inWait );
+			long theLongest = mLongestWait.get();
+			while ((inWait > theLongest) && !mLongestWait.compareAndSet( theLongest, inWait ))
+				theLongest = mLongestWait.get();
+		}
+		
+		public int QueueSize()
+		{
+			if (mPermits != null)
+				return 0;
+			return mExecutor.getQueue().size();
+		}
+		
+		public int QueueDepth()
+		{
+			if (mPermits != null)
+				return 0;
+			return mQueueDepth;
+		}
+		
+		public int ActiveCount()
+		{
+			if (mPermits != null)
+				return mLimit - mPermits.availablePermits();
+			return mExecutor.getActiveCount();
+		}
+		
+		// How many connections may be handled at once
+		public int Limit()
+		{
+			return mLimit;
+		}
+		
+		public long AverageWait()
+		{
+			long theStarted = mStarted.get();
+			if (theStarted == 0)
+				return 0;
+			return mTotalWait.get() / theStarted;
+		}
+	}
+
+	// ============================================================	//
+	// * THostInfo *
+	// ============================================================	//
+	// A class to handle a data about Newton servers
+	// I need such a class because of semaphores (locks).
+
+	public static class THostInfo
+	{
+		// The Newton’s host name (including IP)
+		public String mName;	// The string as shown in the logs and in the table.
+		public String mHost;	// The host name only (used to check the server)
+		public int mPort;		// The port only (default is 80)
+		// Unique ID of the Newton (not currently used)
+		public String mHash;
+		// Plain text description of the Newton
+		public String mDesc;
+		// Time this Newton was last validates (string in RFC format)
+		// (volatile because readers look at it from a registry snapshot, without the lock)
+		public volatile String mLastValidation;
+		// Current status of this Newton: 0 is up, any other number is the number
+		// of unsuccessful attempts made to validate, -1 is a SHARE record
+		public volatile int mStatus;
+		// The tracker a SHARE record comes from (null for the Newtons registered here).
+		// Because if a tracker dies, I may need to warn the Newton and
+		// tell it that personally, I am up. (Sounds cool, doesn’t it?)
+		public TServerInfo mServer;
+		// Whether the address has been checked not to be a private one
+		public volatile boolean mAddressChecked = false;
+		// How long the last checks took (used by the probe engine only)
+		public TRoundTrips mRoundTrips = new TRoundTrips();
+		// How many checks in a row have succeeded (under mLock)
+		public int mUpStreak;
+		// Guards the results of the checks (mStatus, mLastValidation, mUpStreak and mRemoved), so that
+		// they can be written back without taking mHostInfoLock or looking the record up
+		public final ReentrantLock mLock = new ReentrantLock();
+		// Set once the record has left the list (by THostRegistry, under mLock)
+		public volatile boolean mRemoved = false;
+		// Time of the next regular check, and whether it is queued (maintained by TValidator)
+		public long mNextCheck;
+		public boolean mQueued;
+		// Neighbours in registration order (maintained by THostRegistry, under mHostInfoLock)
+		public THostInfo mPrev;
+		public THostInfo mNext;
+	}
+
+	// ============================================================	//
+	// * THostRegistry *
+	// ============================================================	//
+	// A class to hold all the Newton servers.
+	// Records are indexed by name in a hash map, so finding, adding or removing one costs the
+	// same with ten Newtons or a hundred thousand. They are also chained in registration order,
+	// so that QUERY, SHARE and the status page keep listing them the way they always did.
+	// Lookups don’t lock. Changes and walks through the chain happen under mHostInfoLock.
+	// Readers (QUERY, SHARE, the status page) iterate an immutable snapshot instead, so they never
+	// hold the lock while writing to a socket and a slow client can’t hold up a REGUP.
+
+	public static class THostRegistry
+	{
+		// Variables
+		private ConcurrentHashMap mByName = new ConcurrentHashMap();
+		private THostInfo mFirst;
+		private THostInfo mLast;
+		// The list as an array, published for readers. Every change drops it and the next reader
+		// builds a new one, so a burst of registrations costs one copy rather than one per change.
+		private AtomicReference mSnapshot = new AtomicReference();
+		// Bumped by every change to the list or to one of its records, so that readers can tell
+		// whether what they built from it is still current.
+		private AtomicLong mVersion = new AtomicLong();
+		// Drawn at startup and sent with the version to QUERY SINCE clients: a version from a
+		// previous run (whatever its number, and whatever the clock did) then gets the whole list.
+		private final String mEpoch = Long.toHexString( new Random().nextLong() & Long.MAX_VALUE );
+		// The last kChangeLogSize changes: the version each change produced and the name of the
+		// record it touched, in a ring (under mLogLock, which is taken after mHostInfoLock and
+		// after the lock of a record, never before).
+		private final ReentrantLock mLogLock = new ReentrantLock();
+		private long[] mLogVersions = new long[kChangeLogSize];
+		private String[] mLogNames = new String[kChangeLogSize];
+		private int mLogNext = 0;
+		private int mLogCount = 0;
+		// Same, but only for the records registered here (not SHARE records), which are the
+		// only ones other trackers get from me.
+		private AtomicLong mOwnVersion = new AtomicLong();
+		
+		// Returns the record with that name, or null.
+		public THostInfo Get( String inName )
+		{
+			return (THostInfo) mByName.get( inName );
+		}
+		
+		// Adds a record at the end of the list. Returns false if the name is already taken.
+		public boolean Add( THostInfo inInfo )
+		{
+			npdstracker.mHostInfoLock.lock();
+			try
+			{
+				if (mByName.putIfAbsent( inInfo.mName, inInfo ) != null)
+					return false;
+				
+				inInfo.mPrev = mLast;
+				inInfo.mNext = null;
+				if (mLast == null)
+					mFirst = inInfo;
+				else
+					mLast.mNext = inInfo;
+				mLast = inInfo;
+				mSnapshot.set( null );
+				Changed( inInfo );
+				if (inInfo.mStatus != -1)
+					npdstracker.Journal( "[REGUP] " + inInfo.mName + " " + inInfo.mDesc );
+				return true;
+			} finally {
+				npdstracker.mHostInfoLock.unlock();
+			}
+		}
+		
+		// Removes the record with that name. Returns it, or null if there was none.
+		public THostInfo Remove( String inName )
+		{
+			npdstracker.mHostInfoLock.lock();
+			try
+			{
+				THostInfo theInfo = (THostInfo) mByName.remove( inName );
+				if (theInfo != null)
+					Unlink( theInfo );
+				return theInfo;
+			} finally {
+				npdstracker.mHostInfoLock.unlock();
+			}
+		}
+		
+		// Removes this very record. Returns false if it was no longer in the list.
+		public boolean Remove( THostInfo inInfo )
+		{
+			npdstracker.mHostInfoLock.lock();
+			try
+			{
+				if (!mByName.remove( inInfo.mName, inInfo ))
+					return false;
+				Unlink( inInfo );
+				return true;
+			} finally {
+				npdstracker.mHostInfoLock.unlock();
+			}
+		}
+		
+		private void Unlink( THostInfo inInfo )
+		{
+			if (inInfo.mPrev == null)
+				mFirst = inInfo.mNext;
+			else
+				inInfo.mPrev.mNext = inInfo.mNext;
+			if (inInfo.mNext == null)
+				mLast = inInfo.mPrev;
+			else
+				inInfo.mNext.mPrev = inInfo.mPrev;
+			inInfo.mPrev = null;
+			inInfo.mNext = null;
+			mSnapshot.set( null );
+			
+			// A check of this record may be about to report: it will see the flag.
+			inInfo.mLock.lock();
+			try
+			{
+				inInfo.mRemoved = true;
+			} finally {
+				inInfo.mLock.unlock();
+			}
+			Changed( inInfo );
+			if (inInfo.mStatus != -1)
+				npdstracker.Journal( "[REGDN] " + inInfo.mName );
+		}
+		
+		// Records that the fields of a record (status, last validation) were changed.
+		// Call it after the change, with mHostInfoLock or the lock of the record held.
+		public void Changed( THostInfo inInfo )
+		{
+			mLogLock.lock();
+			try
+			{
+				mLogVersions[mLogNext] = mVersion.incrementAndGet();
+				mLogNames[mLogNext] = inInfo.mName;
+				mLogNext = (mLogNext + 1) % kChangeLogSize;
+				if (mLogCount < kChangeLogSize)
+					mLogCount++;
+			} finally {
+				mLogLock.unlock();
+			}
+			
+			if (inInfo.mStatus != -1)
+				mOwnVersion.incrementAndGet();
+		}
+		
+		// Returns the names of the records added, removed or changed since a given version (each
+		// name once, oldest change first), followed by the current version as a Long. Returns null
+		// if the change log doesn’t go back that far.
+		public Vector ChangedSince( long inVersion )
+		{
+			mLogLock.lock();
+			try
+			{
+				long theVersion = mVersion.get();
+				if ((inVersion > theVersion) || (theVersion - inVersion > mLogCount))
+					return null;
+				
+				int theCount = (int) (theVersion - inVersion);
+				int theIndex = (mLogNext - theCount + kChangeLogSize) % kChangeLogSize;
+				LinkedHashSet theNames = new LinkedHashSet();
+				for (int index_i = 0; index_i < theCount; index_i++)
+				{
+					String theName = mLogNames[(theIndex + index_i) % kChangeLogSize];
+					theNames.remove( theName );
+					theNames.add( theName );
+				}
+				
+				Vector theResult = new Vector( theNames );
+				theResult.addElement( Long.valueOf( theVersion ) );
+				return theResult;
+			} finally {
+				mLogLock.unlock();
+			}
+		}
+		
+		public long Version()
+		{
+			return mVersion.get();
+		}
+		
+		public String Epoch()
+		{
+			return mEpoch;
+		}
+		
+		public long OwnVersion()
+		{
+			return mOwnVersion.get();
+		}
+		
+		// First record of the list. Follow mNext for the others (with mHostInfoLock held).
+		public THostInfo First()
+		{
+			return mFirst;
+		}
+		
+		// The list, in order, as an array nobody will ever change.
+		public THostInfo[] Snapshot()
+		{
+			THostInfo[] theSnapshot = (THostInfo[]) mSnapshot.get();
+			if (theSnapshot != null)
+				return theSnapshot;
+			
+			npdstracker.mHostInfoLock.lock();
+			try
+			{
+				theSnapshot = (THostInfo[]) mSnapshot.get();
+				if (theSnapshot == null)
+				{
+					theSnapshot = new THostInfo[mByName.size()];
+					int index_i = 0;
+					for (THostInfo theInfo = mFirst; theInfo != null; theInfo = theInfo.mNext)
+						theSnapshot[index_i++] = theInfo;
+					mSnapshot.set( theSnapshot );
+				}
+				return theSnapshot;
+			} finally {
+				npdstracker.mHostInfoLock.unlock();
+			}
+		}
+		
+		public int size()
+		{
+			return mByName.size();
+		}
+	}
+
+	// ============================================================	//
+	// * TCachedReply *
+	// ============================================================	//
+	// A class to hold a reply ready to be sent, along with the registry version it was built from.
+
+	public static class TCachedReply
+	{
+		public long mVersion;
+		public byte[] mBytes;
+		// Checksum of the records (SHARE reply only)
+		public String mTag;
+		
+		TCachedReply( long inVersion, byte[] inBytes )
+		{
+			mVersion = inVersion;
+			mBytes = inBytes;
+		}
+		
+		TCachedReply( long inVersion, byte[] inBytes, String inTag )
+		{
+			mVersion = inVersion;
+			mBytes = inBytes;
+			mTag = inTag;
+		}
+	}
+
+	// ============================================================	//
+	// * TServerInfo *
+	// ============================================================	//
+	// A class to handle a data about other tracker servers
+	// I need such a class because of semaphores (locks).
+	public static class TServerInfo
+	{
+		// List of external trackers to get data from
+		public String mHost;
+		public String mPort;
+		// The records of this tracker that are in the list, by name (under mHostInfoLock)
+		public HashMap mRecords = new HashMap();
+		// The tag of the last SHARE reply of this tracker, if it sends one
+		public volatile String mTag;
+		// How many SHARE <tag> were sent since the last plain SHARE
+		public volatile int mTaggedFetches = 0;
+		// Health of the tracker: how many times in a row it failed to give its records, why it
+		// failed the last time, and when it may be tried again (System.currentTimeMillis() time).
+		// A tracker that fails is skipped for one period, then two, four... up to a day, so
+		// that trackers that have been dead for years cost next to nothing.
+		public volatile int mFailures = 0;
+		public volatile String mLastError;
+		public volatile long mNextAttempt = 0;
+		public volatile Date mLastSuccess;
+		// Bumped by every fetch: only the last one may touch the records (a fetch that was given
+		// up may still be blocked, in the DNS for instance, and finish after a newer one)
+		public final AtomicLong mGeneration = new AtomicLong();
+		
+		// Longest time between two attempts (in milliseconds)
+		public static final long kMaxBackoff = 24 * 60 * 60 * 1000L;
+		// How many failures in a row before the records of the tracker are removed
+		public static final int kStaleFailures = 3;
+		// How many periods in a row a tracker is sent its tag: the tag doesn’t cover the Last
+		// Verified dates, so I get all of its records once in a while to have them.
+		public static final int kFullFetchPeriods = 6;
+		
+		// Returns true if the tracker may be asked now.
+		public boolean Due( long inNow )
+		{
+			return (inNow >= mNextAttempt);
+		}
+		
+		public void Succeeded()
+		{
+			mFailures = 0;
+			mLastError = null;
+			mNextAttempt = 0;
+			mLastSuccess = new Date();
+		}
+		
+		// Records a failure of the attempt that started at inStarted.
+		public void Failed( String inError, long inStarted )
+		{
+			int theFailures = mFailures + 1;
+			long thePeriod = Math.max( 1, npdstracker.validateTime ) * (long) npdstracker.kValidateTimeUnit;
+			long theBackoff = Math.min( kMaxBackoff, thePeriod << Math.min( theFailures - 1, 16 ) );
+			mFailures = theFailures;
+			mLastError = inError;
+			mNextAttempt = inStarted + theBackoff;
+			npdstracker.logMessage("[SHARE] " + mHost + ":" + mPort + " failed (" + inError + "), next attempt in "
+				+ (theBackoff / npdstracker.kValidateTimeUnit) + " minutes");
+		}
+		
+		// Describes the health of the tracker (for SLIST).
+		public String State()
+		{
+			if (mFailures == 0)
+			{
+				if (mLastSuccess == null)
+					return "not asked yet";
+				return "up (last records " + mLastSuccess + ")";
+			}
+			long theWait = mNextAttempt - System.currentTimeMillis();
+			String theState;
+			if (theWait > 0)
+				theState = "skipped for " + ((theWait + npdstracker.kValidateTimeUnit - 1) / npdstracker.kValidateTimeUnit) + " more minutes";
+			else
+				theState = "will be tried again";
+			return "down (" + mFailures + " failures, " + theState + ", last error: " + mLastError + ")";
+		}
+	}
+
+	// ============================================================	//
+
+	// A class to get the SHARE records of another tracker, on a thread of its own, so that the
+	// trackers are all asked at once and a slow one only delays itself. The records are added to
+	// the list when the whole reply has arrived. If the tracker doesn’t give them, its records
+	// are left as they are, until it has failed kStaleFailures times in a row.
+	public static class TShareFetch extends Thread
+	{
+		// Variables
+		public TServerInfo mServerInfo;
+		// Which fetch of the tracker I am (see TServerInfo.mGeneration)
+		private long mGeneration;
+		// Closed by Abort if the tracker is too slow
+		private volatile Socket mSocket;
+		private volatile boolean mAborted = false;
+		public volatile boolean mFinished = false;
+		// Whether the tracker said its records haven’t changed
+		private boolean mUnchanged = false;
+		// Why the tracker gave no records (if it answered)
+		private String mError;
+		private CountDownLatch mDone;
+		private long mStarted;
+		
+		// Constructor
+		TShareFetch( TServerInfo inServerInfo, CountDownLatch inDone )
+		{
+			mServerInfo = inServerInfo;
+			mGeneration = inServerInfo.mGeneration.incrementAndGet();
+			mDone = inDone;
+			setDaemon( true );
+		}
+		
+		// Gives up (from another thread): the blocked read fails and nothing is added.
+		public void Abort()
+		{
+			mAborted = true;
+			try {
+				Socket theSocket = mSocket;
+				if (theSocket != null)
+					theSocket.close();
+			} catch (IOException e) {}
+		}
+		
+		public void run ()
+		{
+			mStarted = System.currentTimeMillis();
+			Vector theRecords = null;
+			try {
+				theRecords = Fetch();
+			} catch (Exception e) {
+				mError = e.toString();
+			}
+			if (mAborted)
+				mError = "too slow";
+			
+			try {
+				if (mServerInfo.mGeneration.get() != mGeneration)
+				{
+					// A newer fetch was started since: what I got is out of date.
+					npdstracker.logMessage("[SHARE] " + mServerInfo.mHost + " answered too late, ignoring it.");
+				}
+				else if (mUnchanged && !mAborted)
+				{
+					npdstracker.logMessage("[SHARE] " + mServerInfo.mHost + " has no changes.");
+					mServerInfo.Succeeded();
+				}
+				else if ((theRecords == null) || mAborted)
+				{
+					// The records stay as they were, unless the tracker keeps failing.
+					mServerInfo.mTag = null;
+					mServerInfo.Failed( mError, mStarted );
+					if ((mServerInfo.mFailures >= TServerInfo.kStaleFailures)
+						&& npdstracker.MergeShares( mServerInfo, new Vector(), mGeneration ))
+						npdstracker.logMessage("[SHARE] " + mServerInfo.mHost + " failed " + mServerInfo.mFailures + " times in a row, its records are removed.");
+				}
+				else if (npdstracker.MergeShares( mServerInfo, theRecords, mGeneration ))
+					mServerInfo.Succeeded();
+			} finally {
+				mFinished = true;
+				mDone.countDown();
+			}
+		}
+		
+		// Returns the records of the tracker, or null if it didn’t give any.
+		private Vector Fetch() throws IOException
+		{
+			npdstracker.logMessage("Making SHARE connection with " + mServerInfo.mHost);
+			Socket theSocket = new Socket();
+			mSocket = theSocket;
+			try
+			{
+				if (mAborted)
+					return null;
+				theSocket.connect( new InetSocketAddress( mServerInfo.mHost, Integer.parseInt(mServerInfo.mPort) ), npdstracker.connectTimeout );
+				theSocket.setSoTimeout( npdstracker.readTimeout );	// Won’t wait forever, it would break the server.
+				
+				npdstracker.logMessage("Setting up input and output streams");
+				BufferedReader inshare = new BufferedReader(new InputStreamReader( theSocket.getInputStream()) );
+				PrintWriter outshare = new PrintWriter(new OutputStreamWriter( theSocket.getOutputStream()) );
+				// Trackers that sent a tag understand SHARE <tag>; the others only get SHARE.
+				// Every kFullFetchPeriods, they get SHARE all the same, for the new dates.
+				String theTag = mServerInfo.mTag;
+				if (mServerInfo.mTaggedFetches >= TServerInfo.kFullFetchPeriods)
+					theTag = null;
+				npdstracker.logMessage("Sending SHARE command");
+				if (theTag != null)
+				{
+					mServerInfo.mTaggedFetches++;
+					outshare.print("SHARE " + theTag + "\r\n");
+				}
+				else
+				{
+					mServerInfo.mTaggedFetches = 0;
+					outshare.print("SHARE\r\n");
+				}
+				outshare.flush();
+				npdstracker.logMessage("Waiting for reply");
+
+				// The reply looks like this, one record per line:
+				// 200 OK
+				// Address: <host>	Last Verified: <date>	Status: <UP|DOWN>	Description: <text>
+				// (or no-entries if the tracker has none). I read it line by line.
+				String templine = inshare.readLine();
+				if ((templine != null) && (theTag != null) && templine.startsWith(npdstracker.HTTP_NOTMODIFIED + " "))
+				{
+					mUnchanged = true;
+					return null;
+				}
+				if ((templine == null) || !templine.startsWith("200 OK"))
+				{
+					npdstracker.logMessage("Return code is bad. Not getting any records from this server.");
+					mError = "bad reply: " + templine;
+					return null;
+				}
+				npdstracker.logMessage("Return code is good. Parsing records.");
+				int theTagStart = templine.indexOf(" tag=");
+				String theNewTag = null;
+				if (theTagStart != -1)
+					theNewTag = templine.substring(theTagStart + 5).trim();
+
+				Vector theRecords = new Vector();
+				while ((templine = inshare.readLine()) != null)
+				{
+					if (templine.length() == 0)
+						continue;
+					if (templine.startsWith("no-entries"))
+					{
+						npdstracker.logMessage("Remote server has no records.");
+						break;
+					}
+					
+					THostInfo theNewInfo = ParseRecord( templine );
+					if (theNewInfo == null)
+					{
+						npdstracker.logMessage("[SHARE] Skipping malformed record: " + templine);
+						continue;
+					}
+					npdstracker.logMessage("[SHARE] " + theNewInfo.mName + " " + theNewInfo.mLastValidation + " " + theNewInfo.mDesc);
+					theNewInfo.mServer = mServerInfo;
+					theRecords.addElement( theNewInfo );
+				}
+				// (only now that I have them all)
+				mServerInfo.mTag = theNewTag;
+				return theRecords;
+			} finally {
+				theSocket.close();
+			}
+		}
+		
+		// Makes a record out of a line of the reply. Returns null if the line isn’t a record.
+		// The fields are recognized by their names, in any order; only the address is required.
+		public static THostInfo ParseRecord( String inLine )
+		{
+			String theName = null;
+			String theLastValidation = "";
+			String theDesc = "";
+			int theStart = 0;
+			while (theStart < inLine.length())
+			{
+				int theEnd = inLine.indexOf( '\t', theStart );
+				if (theEnd == -1)
+					theEnd = inLine.length();
+				String theField = inLine.substring( theStart, theEnd );
+				if (theField.startsWith("Address:"))
+					theName = theField.substring(8).trim();
+				else if (theField.startsWith("Last Verified:"))
+					theLastValidation = theField.substring(14).trim();
+				else if (theField.startsWith("Description:"))
+					theDesc = theField.substring(12).trim();
+				theStart = theEnd + 1;
+			}
+			
+			// A name is a host, maybe with a port: nothing else would make sense in a QUERY reply.
+			if ((theName == null) || (theName.length() == 0) || (theName.indexOf(' ') != -1))
+				return null;
+			
+			THostInfo theNewInfo = new THostInfo();
+			theNewInfo.mName = theName;
+			theNewInfo.mLastValidation = theLastValidation;
+			theNewInfo.mStatus = -1;
+			theNewInfo.mDesc = theDesc;
+			return theNewInfo;
+		}
+	}
+
+	//////////////////////////////////////////////////////////////////////////////
+	//	UTILITY FUNCTIONS
+	//////////////////////////////////////////////////////////////////////////////
+	
+	// ====================================================================	//
+	// * void logMessage( String ) [static]
+	// ====================================================================	//
+	// Sends a message to the System.out or the log file, if specified
+		
+	public static void logMessage(String message)
+	{
+		if (logVerbose)
+		{
+			// Once the options are read, the lines are written in the background.
+			TLogger theLogger = mLogger;
+			if (theLogger != null)
+				theLogger.Log( StampLine( message ) );
+			else if (logFile.equals(""))
+				System.out.println(StampLine( message ));
+			else
+			{
+				try {
+					FileWriter outlogFile = new FileWriter(logFile, true);
+					outlogFile.write(StampLine( message ) + "\r\n");
+					outlogFile.flush();
+					outlogFile.close();
+				} catch (IOException e) {System.out.println(new Date().toString() + "   FATAL - can’t write to log file: " + logFile);}
+			}
+		}
+	}
+
+	// ====================================================================	//
+	// * void logWarning( String ) [static]
+	// ====================================================================	//
+	// Logs a message that mustn’t go unnoticed: it is also printed on System.out, even if
+	// logVerbose is off.
+		
+	public static void logWarning(String message)
+	{
+		logMessage("WARNING - " + message);
+		if (!logVerbose || !logFile.equals(""))
+			System.out.println(StampLine( "WARNING - " + message ));
+	}
+
+	// ====================================================================	//
+	// * String StampLine( String ) [static]
+	// ====================================================================	//
+	// Returns a log line: the message preceded by the current date.
+
+	public static String StampLine(String message)
+	{
+		return new Date().toString() + "   " + message;
+	}
+
+	// ====================================================================	//
+	// * void sendLog( long, boolean, PrintWriter, Socket ) [static, private]
+	// ====================================================================	//
+	// Sends the log file (the whole of it if inCount is 0, otherwise its last inCount lines, or
+	// bytes if inBytes) to the socket, straight from the file: only the end of the file is read
+	// to find where the lines start.
+
+	private static void sendLog(long inCount, boolean inBytes, PrintWriter out, Socket inSocket) throws IOException
+	{
+		FileChannel theLog;
+		try {
+			theLog = new FileInputStream(logFile).getChannel();
+		} catch (FileNotFoundException e) {
+			out.print("The log file " + logFile + " can’t be read.\r\n");
+			out.flush();
+			return;
+		}
+		try
+		{
+			// (what is written meanwhile isn’t sent)
+			long theEnd = theLog.size();
+			long theStart = 0;
+			if (inCount > 0)
+			{
+				if (inBytes)
+					theStart = Math.max(0, theEnd - inCount);
+				else
+					theStart = logLinesStart(theLog, theEnd, inCount);
+			}
+			out.flush();
+			WritableByteChannel theTarget = inSocket.getChannel();
+			if (theTarget == null)
+				theTarget = Channels.newChannel(inSocket.getOutputStream());
+			while (theStart < theEnd)
+				theStart += theLog.transferTo(theStart, theEnd - theStart, theTarget);
+		} finally {
+			theLog.close();
+		}
+	}
+
+	// ====================================================================	//
+	// * long logLinesStart( FileChannel, long, long ) [static, private]
+	// ====================================================================	//
+	// Returns where the last inLines lines before inEnd start, reading the file backwards
+	// one block at a time.
+
+	private static long logLinesStart(FileChannel inLog, long inEnd, long inLines) throws IOException
+	{
+		ByteBuffer theBlock = ByteBuffer.allocate(8192);
+		long thePosition = inEnd;
+		long theCount = 0;
+		while (thePosition > 0)
+		{
+			int theLength = (int) Math.min(theBlock.capacity(), thePosition);
+			thePosition -= theLength;
+			theBlock.clear();
+			theBlock.limit(theLength);
+			while (theBlock.hasRemaining())
+				if (inLog.read(theBlock, thePosition + theBlock.position()) < 0)
+					break;
+			for (int theIndex = theLength - 1; theIndex >= 0; theIndex--)
+			{
+				// (the newline at the very end doesn’t start a line)
+				long theOffset = thePosition + theIndex;
+				if ((theBlock.get(theIndex) == '\n') && (theOffset != inEnd - 1))
+				{
+					theCount++;
+					if (theCount == inLines)
+						return theOffset + 1;
+				}
+			}
+		}
+		return 0;
+	}
+
+	// ====================================================================	//
+	// * THostInfo QueryRecord( String ) [static, private]
+	// ====================================================================	//
+	// Given a name, returns the host record or null if it cannot be found.
+
+	private static THostInfo QueryRecord (String host)
+	{
+		return mHostRegistry.Get(host);
+	}
+
+	// ====================================================================	//
+	// * void ReturnCode( int, String, PrintWriter ) [static, private]
+	// ====================================================================	//
+	// Given a code and a message, outputs a NPDS/TP status code line.
+
+	private static void ReturnCode(int codetype, String message, PrintWriter out)
+	{
+		out.print(codetype);
+		out.flush();
+		if ((codetype == HTTP_OK) || (codetype == NPDS_OK))
+		{
+			out.print(" OK" + message + "\r\n");
+			out.flush();
+		}
+		else if (codetype == HTTP_ERR)
+		{
+			out.print(" Bad Request" + message + "\r\n");
+			out.flush();
+		}
+		else if (codetype == HTTP_NOTFOUND)
+		{
+			out.print(" File Not Found" + message + "\r\n");
+			out.flush();
+		}
+		else if (codetype == HTTP_NOTMODIFIED)
+		{
+			out.print(" Not Modified" + message + "\r\n");
+			out.flush();
 		}
 		else
 		{
@@ -372,6 +2695,171 @@ public class npdstracker extends Thread
 		}
 	}
 
+	// ====================================================================	//
+	// * void WriteBytes( byte[], PrintWriter, Socket ) [static, private]
+	// ====================================================================	//
+	// Sends bytes that are already encoded, in a single write when I have the socket.
+
+	private static void WriteBytes(byte[] bytes, PrintWriter out, Socket socket) throws IOException
+	{
+		out.flush();
+		if (socket == null)
+		{
+			// Commands from the cmdfile: out is the console.
+			out.print(new String(bytes));
+			out.flush();
+		}
+		else
+		{
+			OutputStream theStream = socket.getOutputStream();
+			theStream.write(bytes);
+			theStream.flush();
+		}
+	}
+
+	// ====================================================================	//
+	// * byte[] QueryReply( void ) [static, private]
+	// ====================================================================	//
+	// Returns the whole QUERY reply (status line included), rebuilding it only if the registry
+	// changed since it was last built.
+
+	private static byte[] QueryReply()
+	{
+		// Read the version first: if the list changes while I build the reply, the reply will
+		// carry the older version and simply be rebuilt next time.
+		long theVersion = mHostRegistry.Version();
+		TCachedReply theReply = (TCachedReply) mQueryReply.get();
+		if ((theReply != null) && (theReply.mVersion == theVersion))
+			return theReply.mBytes;
+		
+		StringBuffer theBuffer = new StringBuffer();
+		theBuffer.append(NPDS_OK + " OK\r\n");
+		THostInfo[] theHosts = mHostRegistry.Snapshot();
+		for (int index_i = 0; index_i < theHosts.length; index_i++)
+		{
+			THostInfo theInfo = theHosts[index_i];
+			theBuffer.append(theInfo.mName + " " + theInfo.mDesc + " " + theInfo.mLastValidation + " " + theInfo.mStatus + "\r\n");
+		}
+		
+		theReply = new TCachedReply(theVersion, theBuffer.toString().getBytes());
+		mQueryReply.set(theReply);
+		return theReply.mBytes;
+	}
+
+	// ====================================================================	//
+	// * byte[] QuerySinceReply( String ) [static, private]
+	// ====================================================================	//
+	// Returns the reply to QUERY SINCE <version>: the current version, then a "+" line (in the
+	// QUERY format) for every record added or changed since that version and a "-" line for every
+	// record removed since. A version is the epoch of the registry (drawn at startup), a dot and
+	// its version. If the version is from another run, or if the change log doesn’t go back that
+	// far, every record is sent as a "+" line and the mode is "full" instead of "delta":
+	//	202 OK
+	//	version: 1b2f09c4e5d6a7f8.42
+	//	mode: delta
+	//	+ newton.example.com:8080 My Newton Monday, 30-January-2017 12:00:00 GMT 0
+	//	- gone.example.com
+
+	private static byte[] QuerySinceReply(String inVersion)
+	{
+		StringBuffer theBuffer = new StringBuffer();
+		theBuffer.append(NPDS_OK + " OK\r\n");
+		
+		String theEpoch = mHostRegistry.Epoch();
+		Vector theNames = null;
+		int theDot = inVersion.indexOf('.');
+		if ((theDot > 0) && inVersion.substring(0, theDot).equals(theEpoch))
+		{
+			try {
+				theNames = mHostRegistry.ChangedSince(Long.parseLong(inVersion.substring(theDot + 1)));
+			} catch (NumberFormatException theException) {
+				// Not one of mine: the whole list.
+			}
+		}
+		if (theNames != null)
+		{
+			Long theVersion = (Long) theNames.lastElement();
+			theBuffer.append("version: " + theEpoch + "." + theVersion + "\r\nmode: delta\r\n");
+			for (int index_i = 0; index_i < theNames.size() - 1; index_i++)
+			{
+				String theName = (String) theNames.elementAt(index_i);
+				THostInfo theInfo = mHostRegistry.Get(theName);
+				if (theInfo == null)
+					theBuffer.append("- " + theName + "\r\n");
+				else
+					theBuffer.append("+ " + theInfo.mName + " " + theInfo.mDesc + " " + theInfo.mLastValidation + " " + theInfo.mStatus + "\r\n");
+			}
+		}
+		else
+		{
+			// Read the version first: anything that changes afterwards will be sent again next time.
+			long theVersion = mHostRegistry.Version();
+			theBuffer.append("version: " + theEpoch + "." + theVersion + "\r\nmode: full\r\n");
+			THostInfo[] theHosts = mHostRegistry.Snapshot();
+			for (int index_i = 0; index_i < theHosts.length; index_i++)
+			{
+				THostInfo theInfo = theHosts[index_i];
+				theBuffer.append("+ " + theInfo.mName + " " + theInfo.mDesc + " " + theInfo.mLastValidation + " " + theInfo.mStatus + "\r\n");
+			}
+		}
+		
+		return theBuffer.toString().getBytes();
+	}
+
+	// ====================================================================	//
+	// * TCachedReply ShareReply( void ) [static, private]
+	// ====================================================================	//
+	// Returns the SHARE reply (status line included), rebuilding it only if one of the records
+	// registered here changed since it was last built. SHARE records coming and going don’t
+	// count, as they aren’t shared again. The status line carries a checksum of the records, the
+	// tag: a tracker that sends it back with its next SHARE is told 304 if nothing changed.
+	// The tag leaves the Last Verified dates out: they change with every check of a Newton that
+	// is up, and then no tag would ever be sent back unchanged. The other trackers get the
+	// dates with a plain SHARE every TServerInfo.kFullFetchPeriods periods.
+
+	private static TCachedReply ShareReply()
+	{
+		long theVersion = mHostRegistry.OwnVersion();
+		TCachedReply theReply = (TCachedReply) mShareReply.get();
+		if ((theReply != null) && (theReply.mVersion == theVersion))
+			return theReply;
+		
+		StringBuffer theBuffer = new StringBuffer();
+		// What the tag is computed from: the records without their dates
+		StringBuffer theTagBuffer = new StringBuffer();
+		THostInfo[] theHosts = mHostRegistry.Snapshot();
+		for (int index_i = 0; index_i < theHosts.length; index_i++)
+		{
+			THostInfo theInfo = theHosts[index_i];
+			if (!(theInfo.mStatus == -1))
+			{
+				theBuffer.append("Address: " + theInfo.mName + "\tLast Verified: "
+					+ theInfo.mLastValidation + "\t");
+				String statstring;
+				if (theInfo.mStatus == 0)
+					statstring = "UP";
+				else
+					statstring = "DOWN";
+				theBuffer.append("Status: " + statstring + "\tDescription: " + theInfo.mDesc + "\r\n");
+				theTagBuffer.append(theInfo.mName + "\t" + statstring + "\t" + theInfo.mDesc + "\r\n");
+			}
+		}
+		
+		byte[] theRecords = theBuffer.toString().getBytes();
+		java.util.zip.CRC32 theChecksum = new java.util.zip.CRC32();
+		theChecksum.update(theTagBuffer.toString().getBytes());
+		String theTag = Long.toHexString(theChecksum.getValue());
+		
+		byte[] theStatus = (HTTP_OK + " OK tag=" + theTag + "\r\n").getBytes();
+		byte[] theBytes = new byte[theStatus.length + theRecords.length];
+		System.arraycopy(theStatus, 0, theBytes, 0, theStatus.length);
+		System.arraycopy(theRecords, 0, theBytes, theStatus.length, theRecords.length);
+		
+		theReply = new TCachedReply(theVersion, theBytes, theTag);
+		mShareReply.set(theReply);
+		return theReply;
+	}
+
 	// ====================================================================	//
 	// * String ReturnRFCTime( Date ) [static, private]
 	// ====================================================================	//
@@ -466,66 +2954,186 @@ public class npdstracker extends Thread
 					}
 				}
 			}
-			else if (tempoption.startsWith("adminPass"))
+			else if (tempoption.startsWith("adminPass"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					adminPass = st.nextToken();
+			}
+			else if (tempoption.startsWith("validateTime"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Eerror reading npdstracker.ini on line " + linenumber);
+				else
+					validateTime = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("validateTries"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					validateTries = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("validateBackoff"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					validateBackoff = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("validateConcurrency"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					validateConcurrency = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("persistDelay"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					persistDelay = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("persistBatch"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					persistBatch = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("journalSync"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					journalSync = Boolean.valueOf(st.nextToken()).booleanValue();
+			}
+			else if (tempoption.startsWith("journalCompact"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					journalCompact = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("dnsTTL"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					dnsTTL = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("dnsNegativeTTL"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					dnsNegativeTTL = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("connectTimeout"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					connectTimeout = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("readTimeout"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					readTimeout = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("shareEnabled"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					shareEnabled = Boolean.valueOf(st.nextToken()).booleanValue();
+			}
+			else if (tempoption.startsWith("shareServer"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+				{
+					TServerInfo theServerInfo = new TServerInfo();
+					theServerInfo.mHost = st.nextToken();
+					theServerInfo.mPort = st.nextToken();
+					mSharingInfoVector.addElement(theServerInfo);
+				}
+			}
+			else if (tempoption.startsWith("logFile"))
 			{
 				garbage = st.nextToken();
 				if (!(garbage.equals("=")))
 					logMessage("Error reading npdstracker.ini on line " + linenumber);
 				else
-					adminPass = st.nextToken();
+					logFile = st.nextToken();
 			}
-			else if (tempoption.startsWith("validateTime"))
+			else if (tempoption.startsWith("logVerbose"))
 			{
 				garbage = st.nextToken();
 				if (!(garbage.equals("=")))
-					logMessage("Eerror reading npdstracker.ini on line " + linenumber);
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
 				else
-					validateTime = Integer.parseInt(st.nextToken());
+					logVerbose = Boolean.valueOf(st.nextToken()).booleanValue();
 			}
-			else if (tempoption.startsWith("validateTries"))
+			else if (tempoption.startsWith("logBuffer"))
 			{
 				garbage = st.nextToken();
 				if (!(garbage.equals("=")))
 					logMessage("Error reading npdstracker.ini on line " + linenumber);
 				else
-					validateTries = Integer.parseInt(st.nextToken());
+					logBuffer = Integer.parseInt(st.nextToken());
 			}
-			else if (tempoption.startsWith("shareEnabled"))
+			else if (tempoption.startsWith("logOverflow"))
 			{
 				garbage = st.nextToken();
 				if (!(garbage.equals("=")))
 					logMessage("Error reading npdstracker.ini on line " + linenumber);
 				else
-					shareEnabled = Boolean.valueOf(st.nextToken()).booleanValue();
+					logOverflow = st.nextToken();
 			}
-			else if (tempoption.startsWith("shareServer"))
+			else if (tempoption.startsWith("logMaxSize"))
 			{
 				garbage = st.nextToken();
 				if (!(garbage.equals("=")))
 					logMessage("Error reading npdstracker.ini on line " + linenumber);
 				else
-				{
-					TServerInfo theServerInfo = new TServerInfo();
-					theServerInfo.mHost = st.nextToken();
-					theServerInfo.mPort = st.nextToken();
-					mSharingInfoVector.addElement(theServerInfo);
-				}
+					logMaxSize = Long.parseLong(st.nextToken());
 			}
-			else if (tempoption.startsWith("logFile"))
+			else if (tempoption.startsWith("logMaxAge"))
 			{
 				garbage = st.nextToken();
 				if (!(garbage.equals("=")))
 					logMessage("Error reading npdstracker.ini on line " + linenumber);
 				else
-					logFile = st.nextToken();
+					logMaxAge = Integer.parseInt(st.nextToken());
 			}
-			else if (tempoption.startsWith("logVerbose"))
+			else if (tempoption.startsWith("logKeep"))
 			{
 				garbage = st.nextToken();
 				if (!(garbage.equals("=")))
 					logMessage("Error reading npdstracker.ini on line " + linenumber);
 				else
-					logVerbose = Boolean.valueOf(st.nextToken()).booleanValue();
+					logKeep = Integer.parseInt(st.nextToken());
 			}
 			else if (tempoption.startsWith("pageTemplate"))
 			{
@@ -567,6 +3175,38 @@ public class npdstracker extends Thread
 				else
 					acceptPrivateHost = st.nextToken();
 			}
+			else if (tempoption.startsWith("serverMode"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					serverMode = st.nextToken();
+			}
+			else if (tempoption.startsWith("workerThreads"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					workerThreads = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("queueDepth"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					queueDepth = Integer.parseInt(st.nextToken());
+			}
+			else if (tempoption.startsWith("virtualConnections"))
+			{
+				garbage = st.nextToken();
+				if (!(garbage.equals("=")))
+					logMessage("Error reading npdstracker.ini on line " + linenumber);
+				else
+					virtualConnections = Integer.parseInt(st.nextToken());
+			}
 			else if (tempoption.startsWith("#") || garbage.equals(""))
 			{
 				// do nothing
@@ -601,6 +3241,42 @@ public class npdstracker extends Thread
 		return result;
 	}
 
+	// ====================================================================	//
+	// void RejectConnection( Socket ) [static, public]
+	// ====================================================================	//
+	// Turns a connection away when no worker can take it: a busy reply, then goodbye.
+
+	public static void RejectConnection( Socket inSocket )
+	{
+		logMessage("Rejecting connection from " + inSocket.getInetAddress().toString() + " (tracker is busy)");
+		try {
+			PrintWriter out = new PrintWriter( new OutputStreamWriter( inSocket.getOutputStream() ) );
+			ReturnCode( HTTP_ERR, kBusyStr, out );
+		} catch (IOException e) {
+			// The client will find out anyway.
+		}
+		try {
+			inSocket.close();
+		} catch (IOException e) {}
+	}
+
+	// ====================================================================	//
+	// ThreadFactory VirtualThreadFactory( void ) [static, private]
+	// ====================================================================	//
+	// Returns Thread.ofVirtual().factory(), or null if virtual threads aren’t available.
+	// It is looked up at run time so that the tracker still compiles and runs on older Java versions.
+
+	private static ThreadFactory VirtualThreadFactory()
+	{
+		try {
+			Object theBuilder = Thread.class.getMethod( "ofVirtual", new Class[0] ).invoke( null, new Object[0] );
+			return (ThreadFactory) Class.forName( "java.lang.Thread$Builder" )
+				.getMethod( "factory", new Class[0] ).invoke( theBuilder, new Object[0] );
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
 	//////////////////////////////////////////////////////////////////////////////
 	//	MAIN FUNCTIONS
 	//////////////////////////////////////////////////////////////////////////////
@@ -648,7 +3324,6 @@ public class npdstracker extends Thread
 	
 	private npdstracker(String tempcmdfile, String tempoptionsfile)
 	{
-		String tempcmd = "";
 		try
 		{
 			// Default values for options.
@@ -657,43 +3332,75 @@ public class npdstracker extends Thread
 			
 			if (!(tempoptionsfile.equals("")))
 				ParseOptionsFile(tempoptionsfile);
+			
+			// From now on, the log is written in the background.
+			TLogger theLogger = new TLogger( logBuffer, logOverflow.equals("block") );
+			theLogger.start();
+			mLogger = theLogger;
 
+			// Whether the list was read from an older file than the snapshot
+			boolean isFallback = false;
 			if (!(tempcmdfile.equals("")))
 			{
-				BufferedReader cmdreader = new BufferedReader(new FileReader(tempcmdfile));
-				PrintWriter cmdwriter = new PrintWriter(new FileWriter(FileDescriptor.out));
-				tempcmd = cmdreader.readLine();
-				while (tempcmd != null)
-				{
-					ProcessQuery(tempcmd, null, cmdwriter, null);
-					tempcmd = cmdreader.readLine();
-				}
-				cmdreader.close();
+				isFallback = loadList(tempcmdfile, new PrintWriter(new FileWriter(FileDescriptor.out)));
+				logMessage(mHostRegistry.size() + " hosts read from " + tempcmdfile);
 			}
 
-			// Let’s create the validation thread.
+			// The cmdfile has been read: changes can be written from now on, to an empty journal.
+			// (Unless the list came from an older file: then the journal is kept and appended to,
+			// so that it is read again on top of it, until the list is next written in full.)
+			mPersister = new TPersister();
+			if (!isFallback)
+				mPersister.Compact();
+			mPersister.start();
+			
+			// Let’s create the validation threads.
+			mProbeEngine = new TProbeEngine();
+			mProbeEngine.start();
 			mValidator = new TValidator();
 			mValidator.start();
 					
 			mServers = new Vector();
 			
-			// For each port, create a server.
-			int nbServers = kPort.size();
-			int indexServers;
-			for (
-					indexServers = 0;
-					indexServers < nbServers;
-					indexServers++) {
-				int thePort = ((Integer) kPort.get(indexServers)).intValue();
-				TServer theServer;
-				try {
-					theServer = new TServer(thePort);
-				} catch (IOException theIOE) {
-					logMessage("npdstracker: Cannot start server on port " + thePort + " (" + theIOE + ")");
-					continue;
-				}
+			// The workers, shared by every port. Virtual threads cost next to nothing while they
+			// wait: they aren’t pooled, only their number is bounded (by virtualConnections).
+			ThreadFactory theFactory = null;
+			if (serverMode.equals("virtual"))
+			{
+				theFactory = VirtualThreadFactory();
+				if (theFactory == null)
+					logMessage("npdstracker: Virtual threads require Java 21 or later, using platform threads");
+			}
+			if (theFactory != null)
+				mWorkers = new TWorkerPool( virtualConnections, theFactory );
+			else
+				mWorkers = new TWorkerPool( workerThreads, queueDepth, Executors.defaultThreadFactory() );
+			
+			if (serverMode.equals("nio"))
+			{
+				// One selector thread for every port.
+				TSelectorServer theServer = new TSelectorServer(kPort);
 				theServer.start();
-				mServers.addElement(theServer);				
+				mServers.addElement(theServer);
+			} else {
+				// For each port, create a server.
+				int nbServers = kPort.size();
+				int indexServers;
+				for (
+						indexServers = 0;
+						indexServers < nbServers;
+						indexServers++) {
+					int thePort = ((Integer) kPort.get(indexServers)).intValue();
+					TServer theServer;
+					try {
+						theServer = new TServer(thePort);
+					} catch (IOException theIOE) {
+						logMessage("npdstracker: Cannot start server on port " + thePort + " (" + theIOE + ")");
+						continue;
+					}
+					theServer.start();
+					mServers.addElement(theServer);				
+				}
 			}
 
 			// ServerSocket timeout: I’ll wait forever until a connection arrives.
@@ -766,7 +3473,7 @@ public class npdstracker extends Thread
 					logMessage("v2 command received - not yet supported");
 					throw new TQueryException ( kUnsupportedVersionStr );
 				}
-				else if ((QueryRecord(hname) == -1))
+				else if (QueryRecord(hname) == null)
 				{
 					// Host is not in our list. Let’s add it.
 
@@ -777,13 +3484,16 @@ public class npdstracker extends Thread
 					theInfo.mHost = host_st.nextToken();
 
 					// First, check the host. We won’t accept hosts that don’t resolve or that are for private networks.
-					byte theHostAddressAsBytes[];
-					try {
-						InetAddress theHostAddress = InetAddress.getByName( theInfo.mHost );
-						
-						theHostAddressAsBytes = theHostAddress.getAddress();
-					} catch (UnknownHostException theException) {
-						throw new TQueryException ( kInvalidHostStr );
+					// The DNS is given up to connectTimeout to answer. If it is slower than that, I accept
+					// the host for now: it will be checked before it is validated for the first time.
+					TResolvedHost theResolvedHost = mResolver.Lookup( theInfo.mHost );
+					if (mResolver.Await( theResolvedHost, connectTimeout ))
+					{
+						if (theResolvedHost.mAddress == null)
+							throw new TQueryException ( kInvalidHostStr );
+						if (IsPrivateHost( theInfo.mHost, theResolvedHost.mAddress ))
+							throw new TQueryException ( kPrivateHostStr );
+						theInfo.mAddressChecked = true;
 					}
 					
 					// Check if the explicitely allowed host name with a private IP is registering
@@ -791,32 +3501,6 @@ public class npdstracker extends Thread
 					{
 						// Accept host and write that to log 
 						logMessage("Private IP host " + theInfo.mHost + " has now registered");
-					} else {
-						// Don’t accept host and check that it’s not any other private network address.
-						// Don’t know for IPv6, so I only work with 4 bytes addies.
-						if (theHostAddressAsBytes.length == 4)
-						{
-							// 10.0.0.0/8
-							if (theHostAddressAsBytes[0] == 10)
-							{
-								throw new TQueryException ( kPrivateHostStr );
-							}
-							// 172.16.0.0/12
-							if ((theHostAddressAsBytes[0] == (byte) 172) && ((theHostAddressAsBytes[1] & 0xF0) == 16))
-							{
-								throw new TQueryException ( kPrivateHostStr );
-							}
-							// 192.168.0.0/16
-							if ((theHostAddressAsBytes[0] == (byte) 192) && (theHostAddressAsBytes[1] == (byte) 168))
-							{
-								throw new TQueryException ( kPrivateHostStr );
-							}
-							// 0.0.0.0/8 or empty host string
-							if (theHostAddressAsBytes[0] == 0)
-							{
-								throw new TQueryException ( kPrivateHostStr );
-							}
-						}
 					}
 					
 					if (host_st.hasMoreTokens())
@@ -843,13 +3527,21 @@ public class npdstracker extends Thread
 					theInfo.mLastValidation = ReturnRFCTime(tempDate);
 					theInfo.mStatus = 0;
 
-					// Synchronized is not required here because the addElement method is synchronized.
-					mHostInfoVector.addElement(theInfo);
+					// Another connection may have registered the same host in the meantime.
+					if (!mHostRegistry.Add(theInfo))
+					{
+						logMessage("Did not insert \"" + hname + "\" into list - host is already registered");
+						throw new TQueryException ( kAlreadyRegisteredStr );
+					}
+					
+					// (At startup, the validator will schedule it when it starts.)
+					if (mValidator != null)
+						mValidator.Schedule(theInfo);
 					
 					ReturnCode(HTTP_OK, "", out);
 
 					logMessage("Inserted \"" + hname + " " + hdesc + "\" into the list");
-					logMessage(mHostInfoVector.size() + " hosts now in the list");
+					logMessage(mHostRegistry.size() + " hosts now in the list");
 					regcounter++;
 				}
 				else
@@ -857,8 +3549,7 @@ public class npdstracker extends Thread
 					// host is already in our list, 
 					logMessage("Did not insert \"" + hname + "\" into list - host is already registered");
 					throw new TQueryException ( kAlreadyRegisteredStr );
-				} // if ((QueryRecord(hname) == -1)) ... else 
-				saveServers();
+				} // if (QueryRecord(hname) == null) ... else 
 			}
 			else if (theCommand.equals("REGDN"))
 			{
@@ -876,20 +3567,9 @@ public class npdstracker extends Thread
 					throw new TQueryException ( kRTFMStr );
 				}
 					
-				int tempindex;
-				
-				// I need the tempindex, nobody should change the list before I do remove this element
-				// But, because I don’t want to lock the other connections, I’d better do only removal
-				// in the synchronized statement
-				synchronized (mHostInfoVector)
-				{
-					tempindex = QueryRecord(host);
-					if (tempindex != -1)
-					{
-						mHostInfoVector.removeElementAt(tempindex);
-					}
-				}
-				if (tempindex == -1)
+				// The registry does the removal under its lock, nobody can change the list before I do.
+				THostInfo theRemovedInfo = mHostRegistry.Remove(host);
+				if (theRemovedInfo == null)
 				{
 					logMessage("REGDN failed - host not found in list");
 					throw new TQueryException ( kNotRegisteredStr );
@@ -898,24 +3578,21 @@ public class npdstracker extends Thread
 				{
 					ReturnCode(HTTP_OK, "", out);
 					logMessage("Removed \"" + host + "\" from the list");
-					logMessage(mHostInfoVector.size() + " hosts now in the list");
-				} // if (tempindex == -1)
-				saveServers();
+					logMessage(mHostRegistry.size() + " hosts now in the list");
+				} // if (theRemovedInfo == null)
 			}
 			else if (theCommand.equals("QUERY"))
 			{
-				logMessage("Processing QUERY command");
-				ReturnCode(NPDS_OK, "", out);
-				// Print out all of the Newtons registered
-				synchronized (mHostInfoVector)
+				if (st.hasMoreTokens() && st.nextToken().toUpperCase().equals("SINCE"))
 				{
-					for (int index_i = 0; index_i < mHostInfoVector.size(); index_i++)
-					{
-						THostInfo theInfo = (THostInfo) mHostInfoVector.elementAt(index_i);
-
-						out.print(theInfo.mName + " " + theInfo.mDesc + " " + theInfo.mLastValidation + " " + theInfo.mStatus + "\r\n");
-						out.flush();
-					}
+					logMessage("Processing QUERY SINCE command");
+					WriteBytes(QuerySinceReply(st.nextToken()), out, socket);
+				}
+				else
+				{
+					logMessage("Processing QUERY command");
+					// Send all of the Newtons registered in one go
+					WriteBytes(QueryReply(), out, socket);
 				}
 			}
 			else if (theCommand.equals("SHARE"))
@@ -924,26 +3601,12 @@ public class npdstracker extends Thread
 				logMessage("Processing SHARE command");
 				if (shareEnabled == true)
 				{
-					ReturnCode(HTTP_OK, "", out);
-					synchronized (mHostInfoVector)
-					{
-						for (int index_i = 0; index_i < mHostInfoVector.size(); index_i++)
-						{
-							THostInfo theInfo = (THostInfo) mHostInfoVector.elementAt(index_i);
-							if (!(theInfo.mStatus == -1))
-							{
-								out.print("Address: " + theInfo.mName + "\tLast Verified: "
-									+ theInfo.mLastValidation + "\t");
-								String statstring;
-								if (theInfo.mStatus == 0)
-									statstring = "UP";
-								else
-									statstring = "DOWN";
-								out.print("Status: " + statstring + "\tDescription: " + theInfo.mDesc + "\r\n");
-								out.flush();
-							}
-						}
-					}
+					// SHARE <tag> (an extension): the other tracker already has the records with that tag.
+					TCachedReply theReply = ShareReply();
+					if (st.hasMoreTokens() && st.nextToken().equals(theReply.mTag))
+						ReturnCode(HTTP_NOTMODIFIED, " tag=" + theReply.mTag, out);
+					else
+						WriteBytes(theReply.mBytes, out, socket);
 				}
 				else
 				{
@@ -1010,7 +3673,7 @@ public class npdstracker extends Thread
 
 		// I prepare the result strings.
 		// Find out what my address is. I use the host header if present.
-		String urlStr = socket.getLocalAddress().getHostName();
+		String urlStr = mResolver.HostName( socket.getLocalAddress() );
 		String requestLine = in.readLine();
 		while ((requestLine != null) && (requestLine.length() > 0) )
 		{
@@ -1047,41 +3710,39 @@ public class npdstracker extends Thread
 
 		String tableStr = "<table>\r\n<tr>\r\n<th>Status</th>\r\n<th>Server</th>\r\n<th>Last Verified</th>\r\n</tr>\r\n";
 			
-		int index_i;
-		synchronized (mHostInfoVector)
+		int index_i = 0;
+		THostInfo[] theHosts = mHostRegistry.Snapshot();
+		for (index_i = 0; index_i < theHosts.length; index_i++)
 		{
-			for (index_i = 0; index_i < mHostInfoVector.size(); index_i++)
+			THostInfo theInfo = theHosts[index_i];
+			String classStr;	// String representing the class of the raw.
+			String labelStr;	// String for the label.
+			
+			switch ( theInfo.mStatus )
 			{
-				THostInfo theInfo = (THostInfo) mHostInfoVector.elementAt(index_i);
-				String classStr;	// String representing the class of the raw.
-				String labelStr;	// String for the label.
+				case -1:
+					classStr = "up-sharing";
+					labelStr = "Up (Sharing)";
+					break;
 				
-				switch ( theInfo.mStatus )
-				{
-					case -1:
-						classStr = "up-sharing";
-						labelStr = "Up (Sharing)";
-						break;
+				case 0:
+					classStr = "up";
+					labelStr = "Up";
+					break;
 					
-					case 0:
-						classStr = "up";
-						labelStr = "Up";
-						break;
-						
-					default:
-						classStr = "down";
-						labelStr = "Down";
-						break;
-				}
-				
-				tableStr += "<tr class=\"" + classStr + "\">\r\n<td><strong>"
-							+ labelStr
-							+ "</strong></td>\r\n<td><a href=\"http://"
-							+ theInfo.mName
-							+ "\">" + theInfo.mDesc + "</a></td>\r\n";
-				tableStr += "<td>" + theInfo.mLastValidation + "</td>\r\n</tr>\r\n";
-			}
-		} // synchronized (mHostInfoVector)
+				default:
+					classStr = "down";
+					labelStr = "Down";
+					break;
+			}
+			
+			tableStr += "<tr class=\"" + classStr + "\">\r\n<td><strong>"
+						+ labelStr
+						+ "</strong></td>\r\n<td><a href=\"http://"
+						+ theInfo.mName
+						+ "\">" + theInfo.mDesc + "</a></td>\r\n";
+			tableStr += "<td>" + theInfo.mLastValidation + "</td>\r\n</tr>\r\n";
+		}
 		if (index_i == 0)
 		{
 			tableStr += "<tr>\r\n<td colspan=\"3\"><em>No devices registered.</em></td>\r\n</tr>\r\n";
@@ -1116,7 +3777,7 @@ public class npdstracker extends Thread
 		}
 
 		// Define count of servers as string
-		String serverCounterStr = Integer.toString( mHostInfoVector.size() );
+		String serverCounterStr = Integer.toString( mHostRegistry.size() );
 		
 		// Contextual modification of string for template display
 		if (serverCounterStr.equals("0"))
@@ -1238,11 +3899,14 @@ public class npdstracker extends Thread
 		out.print("Welcome to the NPDS Tracker Server administration interface! (Type HELP for command reference.)\r\n");
 		out.flush();
 		String commandline = "";
+		// (as typed: file names keep their case)
+		String rawcommandline;
 		while (!(commandline.startsWith("Q")) || !(commandline.startsWith("q")))
 		{
 			out.print("> ");
 			out.flush();
-			commandline = in.readLine().toUpperCase();
+			rawcommandline = in.readLine();
+			commandline = rawcommandline.toUpperCase();
 			if (commandline.equals("HELP"))
 			{
 				out.print("Valid commands are:\r\n");
@@ -1250,7 +3914,8 @@ public class npdstracker extends Thread
 				out.print("ABOUT     Display the current tracker settings\r\n");
 				out.print("HALT      Stop the tracker (with confirmation)\r\n");
 				out.print("HELP      Displays this list of commands\r\n");
-				out.print("LOGS      Dumps the tracker log\r\n");
+				out.print("LOGS      Dumps the tracker log (LOGS n: its last n lines, LOGS nB: its last n bytes)\r\n");
+				out.print("EXPORT    Write the registered clients to the command file (or to the given file)\r\n");
 				out.print("SHARE     Change the tracker share settings\r\n");
 				out.print("SLIST     View or modify the list of trackers to obtain shared records from\r\n");
 				out.print("VTEST     Trigger a tracker validation\r\n");
@@ -1276,13 +3941,35 @@ public class npdstracker extends Thread
 				if (confirm.startsWith("y") || confirm.startsWith("Y"))
 				{
 					logMessage("Tracker shutting down via administration interface.");
+					// The last changes mustn’t be lost.
+					if (mPersister != null)
+						mPersister.Flush();
+					if (mLogger != null)
+						mLogger.Flush();
 					System.gc();
 					System.exit(0);
 				}
 			}
-			else if (commandline.equals("LOGS"))
+			else if (commandline.equals("LOGS") || commandline.startsWith("LOGS "))
 			{
-				if (logFile.equals(""))
+				// How much of the log: all of it, the last n lines, or the last n bytes (nB).
+				String theArg = commandline.substring(4).trim();
+				long theCount = 0;
+				boolean theBytes = theArg.endsWith("B");
+				try {
+					if (theBytes)
+						theArg = theArg.substring(0, theArg.length() - 1);
+					if (!theArg.equals(""))
+						theCount = Long.parseLong(theArg);
+				} catch (NumberFormatException e) {
+					theCount = -1;
+				}
+				if (theCount < 0)
+				{
+					out.print("Usage: LOGS [lines | bytesB]\r\n");
+					out.flush();
+				}
+				else if (logFile.equals(""))
 				{
 					out.print("Sorry, logs can only be read remotely if they are being written to a file. (They aren’t.)\r\n");
 					out.flush();
@@ -1292,14 +3979,10 @@ public class npdstracker extends Thread
 					out.print("Start your terminal capture feature, then hit enter.\r\n");
 					out.flush();
 					String foo = in.readLine();
-					BufferedReader dumplogs = new BufferedReader (new FileReader(logFile));
-					foo = dumplogs.readLine();
-					while (foo != null)
-					{
-						out.print(foo + "\r\n");
-						out.flush();
-						foo = dumplogs.readLine();
-					}
+					// With the lines still waiting to be written.
+					if (mLogger != null)
+						mLogger.Flush();
+					sendLog(theCount, theBytes, out, inSocket);
 				}
 			}
 			else if (commandline.equals("SHARE"))
@@ -1335,6 +4018,24 @@ public class npdstracker extends Thread
 					out.flush();
 				}
 			}
+			else if (commandline.equals("EXPORT") || commandline.startsWith("EXPORT "))
+			{
+				String theFile = rawcommandline.substring(6).trim();
+				if (theFile.length() == 0)
+					theFile = cmdfile;
+				boolean isWritten;
+				mCmdFileLock.lock();
+				try {
+					isWritten = writeServers(theFile);
+				} finally {
+					mCmdFileLock.unlock();
+				}
+				if (isWritten)
+					out.print("Registered clients written to " + theFile + "\r\n");
+				else
+					out.print("Can’t write to " + theFile + "\r\n");
+				out.flush();
+			}
 			else if (commandline.equals("VTEST"))
 			{
 				out.print("Client validation test started\r\n");
@@ -1345,13 +4046,18 @@ public class npdstracker extends Thread
 			{
 				out.print("Pages served: " + hitcounter + "\r\n");
 				out.print("REGUP commands processed: " + regcounter + "\r\n");
-				out.print("NPDS clients currently registered: " + mHostInfoVector.size() + "\r\n");
+				out.print("NPDS clients currently registered: " + mHostRegistry.size() + "\r\n");
+				out.print("Connections being handled: " + mWorkers.ActiveCount() + " (of " + mWorkers.Limit() + ")\r\n");
+				out.print("Connections waiting: " + mWorkers.QueueSize() + " (of " + mWorkers.QueueDepth() + ")\r\n");
+				out.print("Connections rejected: " + mWorkers.mRejected.get() + "\r\n");
+				out.print("Average wait for a worker: " + mWorkers.AverageWait() + " ms (longest " + mWorkers.mLongestWait.get() + " ms)\r\n");
 				out.flush();
 			}
 			else if (commandline.equals("VERIFY"))
 			{
 				out.print("Tracker verifies every " + validateTime + " minutes\r\n");
 				out.print("Verification is attempted " + validateTries + " times\r\n");
+				out.print("Clients which stay up are verified up to every " + (validateTime * validateBackoff) + " minutes\r\n");
 				out.print("Edit settings? ");
 				out.flush();
 				String confirm = in.readLine();
@@ -1368,336 +4074,687 @@ public class npdstracker extends Thread
 			}
 			else if (commandline.equals("SLIST"))
 			{
-				out.print("NPDS Trackers to get SHARE records from:\r\n");
-				out.flush();
-				synchronized (mSharingInfoVector)
+				out.print("NPDS Trackers to get SHARE records from:\r\n");
+				out.flush();
+				// (I print a copy: the list mustn’t stay locked while the admin’s client reads)
+				Vector theServers;
+				mSharingInfoLock.lock();
+				try
+				{
+					theServers = new Vector( mSharingInfoVector );
+				} finally {
+					mSharingInfoLock.unlock();
+				}
+				for (int foo = 0; foo < theServers.size(); foo++)
+				{
+					TServerInfo theServerInfo = (TServerInfo) theServers.elementAt(foo);
+					out.print(foo + ": " + theServerInfo.mHost + ":" + theServerInfo.mPort + " - " + theServerInfo.State() + "\r\n");
+					out.flush();
+				}
+
+				out.print("Add or delete a record? (A/D): ");
+				out.flush();
+				String confirm = in.readLine();
+				if (confirm.startsWith("A") || confirm.startsWith("a"))
+				{
+					TServerInfo theServerInfo = new TServerInfo();
+					
+					out.print("Enter host: ");
+					out.flush();
+					theServerInfo.mHost = in.readLine();
+
+					out.print("Enter port: (Leave empty for 3680) ");
+					out.flush();
+					String thePortStr = in.readLine();
+					if (thePortStr != null)
+						theServerInfo.mPort = thePortStr;
+					else
+						theServerInfo.mPort = "" + DEFAULT_PORT;
+					
+					mSharingInfoLock.lock();
+					try
+					{
+						mSharingInfoVector.addElement(theServerInfo);
+					} finally {
+						mSharingInfoLock.unlock();
+					}
+				}
+				else if (confirm.startsWith("D") || confirm.startsWith("d"))
+				{
+					out.print("Enter number to delete: ");
+					out.flush();
+					String deletenumber = in.readLine();
+					mSharingInfoLock.lock();
+					try
+					{
+						mSharingInfoVector.removeElementAt(Integer.parseInt(deletenumber));
+					} finally {
+						mSharingInfoLock.unlock();
+					}
+				}
+			}
+			else
+			{
+				out.print("Invalid command. (Type HELP for command reference.)\r\n");
+				out.flush();
+			}
+		}
+	}
+
+	// ====================================================================	//
+	// void validateServers( void ) [static, private]
+	// ====================================================================	//
+	// Checks the registered Newtons.
+	
+	public static void validateServers() throws SocketException
+	{
+		logMessage("Starting validation of records");
+		
+		mValidationInProgress += 1;
+		
+		THostInfo[] theHosts = mHostRegistry.Snapshot();
+		
+		// Don’t validate SHARE records
+		int theCount = 0;
+		for (int foo = 0; foo < theHosts.length; foo++)
+			if (!(theHosts[foo].mStatus == -1))
+				theCount++;
+		
+		// The probe engine checks up to validateConcurrency Newtons at once, so that a cycle takes
+		// about as long as the slowest check rather than the sum of all of them.
+		CountDownLatch theDone = new CountDownLatch( theCount );
+		for (int foo = 0; foo < theHosts.length; foo++)
+		{
+			THostInfo theInfo = theHosts[foo];
+			if (!(theInfo.mStatus == -1))
+				mProbeEngine.Submit( new TProbe( theInfo, theDone, false ) );
+		} // for (int foo = 0; foo < theHosts.length; foo++)
+		
+		try {
+			theDone.await();
+		} catch (InterruptedException e) {
+			// Never mind, the checks will end by themselves.
+		}
+		
+		validateShares();
+		
+		mValidationInProgress -= 1;
+		logMessage("Ending validation of records");
+	}
+
+	// ====================================================================	//
+	// void validateShares( void ) [static, public]
+	// ====================================================================	//
+	// Drops the Newtons that have been down too long and gets the SHARE records of the other
+	// trackers again. The validator does this once per period.
+
+	public static void validateShares()
+	{
+		Vector theServers;
+		mSharingInfoLock.lock();
+		try
+		{
+			theServers = new Vector( mSharingInfoVector );
+		} finally {
+			mSharingInfoLock.unlock();
+		} // mSharingInfoLock
+		
+		// check for servers which we haven’t been able to reach in a while and toast them
+		mHostInfoLock.lock();
+		try
+		{
+			// I remember the next record before removing this one from the chain.
+			THostInfo theNextInfo;
+			for (THostInfo theInfo = mHostRegistry.First(); theInfo != null; theInfo = theNextInfo)
+			{
+				theNextInfo = theInfo.mNext;
+				if (theInfo.mStatus > validateTries)
+				{
+					logMessage(theInfo.mName + " removed. Too many failed connections.");
+					mHostRegistry.Remove( theInfo );
+				}
+				// SHARE records stay until their tracker stops giving them, unless the tracker
+				// has been taken off the list.
+				else if ((theInfo.mStatus == -1) && !theServers.contains( theInfo.mServer ))
+				{
+					logMessage("[SHARE] " + theInfo.mName + " removed. Its tracker is no longer shared with.");
+					mHostRegistry.Remove( theInfo );
+				}
+			} // for (THostInfo theInfo = mHostRegistry.First(); theInfo != null; theInfo = theNextInfo)
+		} finally {
+			mHostInfoLock.unlock();
+		} // mHostInfoLock
+
+		// retrieve the latest info from other trackers
+		// I ask them all at once, from the copy of the list: the list isn’t locked while I wait for them.
+		// Trackers that failed recently are left alone until their next attempt.
+		long now = System.currentTimeMillis();
+		Vector theDueServers = new Vector();
+		for (int foo = 0; foo < theServers.size(); foo++)
+		{
+			TServerInfo theServerInfo = (TServerInfo) theServers.elementAt(foo);
+			if (theServerInfo.Due( now ))
+				theDueServers.addElement( theServerInfo );
+		}
+		
+		CountDownLatch theDone = new CountDownLatch( theDueServers.size() );
+		TShareFetch[] theFetches = new TShareFetch[theDueServers.size()];
+		for (int foo = 0; foo < theDueServers.size(); foo++)
+		{
+			theFetches[foo] = new TShareFetch( (TServerInfo) theDueServers.elementAt(foo), theDone );
+			theFetches[foo].start();
+		}
+		
+		// Each tracker has connectTimeout + readTimeout to give its records.
+		try {
+			theDone.await( connectTimeout + readTimeout, TimeUnit.MILLISECONDS );
+		} catch (InterruptedException e) {
+			// Never mind, the late ones are given up below.
+		}
+		for (int foo = 0; foo < theFetches.length; foo++)
+		{
+			if (!theFetches[foo].mFinished)
+			{
+				logMessage("[SHARE] " + theFetches[foo].mServerInfo.mHost + " is too slow, giving up");
+				theFetches[foo].Abort();
+			}
+		}
+	}
+
+	// ====================================================================	//
+	// boolean MergeShares( TServerInfo, Vector, long ) [static, public]
+	// ====================================================================	//
+	// Brings the SHARE records of another tracker in the list up to date with what it just gave:
+	// new records are added, changed ones are updated and those it no longer has are removed.
+	// Records that didn’t change aren’t touched, so the list only changes when the tracker’s did.
+	// Returns false (and does nothing) if inGeneration isn’t the last fetch of the tracker.
+
+	public static boolean MergeShares( TServerInfo inServerInfo, Vector inRecords, long inGeneration )
+	{
+		mHostInfoLock.lock();
+		try
+		{
+			if (inServerInfo.mGeneration.get() != inGeneration)
+				return false;
+			HashMap theOldRecords = inServerInfo.mRecords;
+			HashMap theNewRecords = new HashMap();
+			for (int index_i = 0; index_i < inRecords.size(); index_i++)
+			{
+				THostInfo theNewInfo = (THostInfo) inRecords.elementAt(index_i);
+				if (theNewRecords.containsKey( theNewInfo.mName ))
+					continue;
+				
+				THostInfo theOldInfo = (THostInfo) theOldRecords.get( theNewInfo.mName );
+				if ((theOldInfo != null) && !theOldInfo.mRemoved)
 				{
-					for (int foo = 0; foo < mSharingInfoVector.size(); foo++)
+					// Already there: only update what changed.
+					theOldInfo.mLock.lock();
+					try
 					{
-						TServerInfo theServerInfo = (TServerInfo) mSharingInfoVector.elementAt(foo);
-						out.print(foo + ": " + theServerInfo.mHost + ":" + theServerInfo.mPort + "\r\n");
-						out.flush();
+						if (!theOldInfo.mDesc.equals( theNewInfo.mDesc )
+							|| !theOldInfo.mLastValidation.equals( theNewInfo.mLastValidation ))
+						{
+							theOldInfo.mDesc = theNewInfo.mDesc;
+							theOldInfo.mLastValidation = theNewInfo.mLastValidation;
+							mHostRegistry.Changed( theOldInfo );
+						}
+					} finally {
+						theOldInfo.mLock.unlock();
 					}
+					theNewRecords.put( theOldInfo.mName, theOldInfo );
 				}
-
-				out.print("Add or delete a record? (A/D): ");
-				out.flush();
-				String confirm = in.readLine();
-				if (confirm.startsWith("A") || confirm.startsWith("a"))
-				{
-					TServerInfo theServerInfo = new TServerInfo();
-					
-					out.print("Enter host: ");
-					out.flush();
-					theServerInfo.mHost = in.readLine();
-
-					out.print("Enter port: (Leave empty for 3680) ");
-					out.flush();
-					String thePortStr = in.readLine();
-					if (thePortStr != null)
-						theServerInfo.mPort = thePortStr;
-					else
-						theServerInfo.mPort = "" + DEFAULT_PORT;
-					
-					mSharingInfoVector.addElement(theServerInfo);
-				}
-				else if (confirm.startsWith("D") || confirm.startsWith("d"))
-				{
-					out.print("Enter number to delete: ");
-					out.flush();
-					String deletenumber = in.readLine();
-					mSharingInfoVector.removeElementAt(Integer.parseInt(deletenumber));
-				}
+				// Names are unique: a host registered here or shared by another
+				// tracker already wins.
+				else if (mHostRegistry.Add(theNewInfo))
+					theNewRecords.put( theNewInfo.mName, theNewInfo );
+				else
+					logMessage("[SHARE] " + theNewInfo.mName + " is already in the list");
 			}
-			else
+			
+			// The records the tracker no longer gives.
+			Iterator theOldInfos = theOldRecords.values().iterator();
+			while (theOldInfos.hasNext())
 			{
-				out.print("Invalid command. (Type HELP for command reference.)\r\n");
-				out.flush();
+				THostInfo theOldInfo = (THostInfo) theOldInfos.next();
+				if (!theNewRecords.containsKey( theOldInfo.mName ) && mHostRegistry.Remove( theOldInfo ))
+					logMessage("[SHARE] " + theOldInfo.mName + " removed. " + inServerInfo.mHost + " no longer has it.");
 			}
-		}
+			
+			inServerInfo.mRecords = theNewRecords;
+			return true;
+		} finally {
+			mHostInfoLock.unlock();
+		} // mHostInfoLock
 	}
 
 	// ====================================================================	//
-	// void validateServers( void ) [static, private]
+	// boolean IsPrivateHost( String, InetAddress ) [static, public]
 	// ====================================================================	//
-	// Checks the registered Newtons.
-	
-	public static void validateServers() throws SocketException
+	// Returns true if an address is for a private network (unless the host is acceptPrivateHost).
+
+	public static boolean IsPrivateHost( String inHost, InetAddress inAddress )
 	{
-		logMessage("Starting validation of records");
-		
-		mValidationInProgress += 1;
+		// Check if the explicitely allowed host name with a private IP is registering
+		if (acceptPrivateHost.equals(inHost))
+			return false;
 		
-		Vector theHosts = (Vector) mHostInfoVector.clone();
-		
-		for (int foo = 0; foo < theHosts.size(); foo++)
+		// Don’t know for IPv6, so I only work with 4 bytes addies.
+		byte theHostAddressAsBytes[] = inAddress.getAddress();
+		if (theHostAddressAsBytes.length == 4)
 		{
-			THostInfo theInfo = (THostInfo) theHosts.elementAt(foo);
-			System.gc();
-			// try to retrieve /traq/confirm.ns
-			String checkResult = null;
-			InputStream in = null;
-			OutputStream out = null;
-			// Don’t validate SHARE records
-			if (!(theInfo.mStatus == -1))
+			// 10.0.0.0/8
+			if (theHostAddressAsBytes[0] == 10)
+				return true;
+			// 172.16.0.0/12
+			if ((theHostAddressAsBytes[0] == (byte) 172) && ((theHostAddressAsBytes[1] & 0xF0) == 16))
+				return true;
+			// 192.168.0.0/16
+			if ((theHostAddressAsBytes[0] == (byte) 192) && (theHostAddressAsBytes[1] == (byte) 168))
+				return true;
+			// 0.0.0.0/8 or empty host string
+			if (theHostAddressAsBytes[0] == 0)
+				return true;
+		}
+		return false;
+	}
+
+	// ====================================================================	//
+	// void RemoveHost( THostInfo ) [static, public]
+	// ====================================================================	//
+	// Removes a host from the list (if it is still there).
+
+	public static void RemoveHost( THostInfo inInfo )
+	{
+		mHostInfoLock.lock();
+		try
+		{
+			mHostRegistry.Remove( inInfo );
+		} finally {
+			mHostInfoLock.unlock();
+		}
+	}
+
+	// ====================================================================	//
+	// void ValidationResult( THostInfo, boolean ) [static, public]
+	// ====================================================================	//
+	// Writes the result of a check back to the record of that Newton, under the lock of the record
+	// only: no lookup, and mHostInfoLock is only taken to remove it.
+
+	public static void ValidationResult( THostInfo theInfo, boolean isUp )
+	{
+		boolean isToasted = false;
+		theInfo.mLock.lock();
+		try
+		{
+			// If it has been removed while we were checking it, the result doesn’t matter.
+			if (theInfo.mRemoved)
+				return;
+			
+			int theOldStatus = theInfo.mStatus;
+			if (isUp)
 			{
-				try
-				{
-					logMessage("checking " + theInfo.mName);
-					Socket checkSocket = new Socket( theInfo.mHost, theInfo.mPort );
-					checkSocket.setSoTimeout( kTimeout );
-						
-					BufferedReader inshare = new BufferedReader(new InputStreamReader(checkSocket.getInputStream()));
-					PrintWriter outshare = new PrintWriter(new OutputStreamWriter(checkSocket.getOutputStream()));
-						
-					// Here is what I say:
-					// GET /traq/confirm.ns HTTP/1.0
-					// Host: <the host of the Newton server - used by some firewalls>
-					// User-Agent: <kUserAgentStr>
-					// Accept: text/x-npds				// this is what the client says and it should confuse any Apache webserver.
-														// Remind me to add this to the protocol.
-						
-					outshare.print("GET /traq/confirm.ns HTTP/1.0\r\n");
-					outshare.print("Host: " + theInfo.mHost + "\r\n");
-					outshare.print("User-Agent: " + kUserAgentStr + "\r\n");
-					outshare.print("Accept: text/x-npds\r\n");
-					outshare.print("\r\n");
-					outshare.flush();
-					logMessage("Waiting for reply");
+				theInfo.mLastValidation = ReturnRFCTime(new Date());
+				theInfo.mStatus = 0;
+				theInfo.mUpStreak += 1;
+			}
+			else
+			{
+				theInfo.mStatus += 1;
+				theInfo.mUpStreak = 0;
+			}
+			mHostRegistry.Changed(theInfo);
+			// Only the changes of status are journaled: a Newton that is still up only has a new
+			// time, which the next snapshot will have. (Under the lock of the record: the line can’t
+			// come after its [REGDN].)
+			if (theInfo.mStatus != theOldStatus)
+				Journal( StatusLine(theInfo) );
+			isToasted = (theInfo.mStatus > validateTries);
+		} finally {
+			theInfo.mLock.unlock();
+		}
+		
+		// toast it if we haven’t been able to reach it in a while
+		if (isToasted && mHostRegistry.Remove( theInfo ))
+			logMessage(theInfo.mName + " removed. Too many failed connections.");
+		
+		mLastValidation = ReturnRFCTime(new Date());
+	}
 
-					char[] buffer = new char[512];
-					int bytes_read = 0;
-					while((bytes_read = inshare.read(buffer)) != -1);
+	// ====================================================================	//
+	// void Journal( String ) [static, public]
+	// ====================================================================	//
+	// Hands a change to the persister. (Before it is started, while the cmdfile is being read,
+	// there is nothing to write.)
 
-					checkResult = new String(buffer);
+	public static void Journal( String inLine )
+	{
+		if (mPersister != null)
+			mPersister.Record( inLine );
+	}
 
-					checkSocket.close();
-						
-					// The result should look like this:
-					// HTTP_Version	202	foo
-					// plenty of headers
-					// CRLF CRLF
-					// npds-status: SERVER_ALIVE_WELL
+	// ====================================================================	//
+	// String StatusLine( THostInfo ) [static, public]
+	// ====================================================================	//
+	// Describes the result of the last check of a Newton, for the journal and the cmdfile.
 
-					// This last element isn’t in the protocol. So I accept anybody without it.
-					// I only check the 202.
-					// (maybe one day, I’ll check the content-type and the npds-status)
-					// In fact, I’m pretty laxist (please don’t repeat that) and I allow test pages served by some webserver).
-					// I look for a 202 anywhere in the first 512 bytes.
+	public static String StatusLine( THostInfo inInfo )
+	{
+		return "[STATUS] " + inInfo.mName + " " + inInfo.mStatus + " " + inInfo.mLastValidation;
+	}
 
-					// if there was a zero-length result received, we assume the server is down
-					if (checkResult.startsWith("\u0000") || (checkResult.length() == 0))
-					{
-						logMessage(theInfo.mName + " is down (timeout / host not found)");
-						theInfo.mStatus += 1;
-					}
-					else if (checkResult.indexOf("202") > -1)
-					{
-						// the server is good: update its time and status
-						logMessage(theInfo.mName + " is up");
-						
-						int index_j;
+	// ====================================================================	//
+	// boolean writeServers( String ) [static, public]
+	// ====================================================================	//
+	// Writes the registered Newtons as [REGUP] and [STATUS] lines (the EXPORT admin command, with
+	// mCmdFileLock held). Returns false if it couldn’t.
 
-						synchronized ( mHostInfoVector )
-						{
-							for (index_j = 0; index_j < mHostInfoVector.size(); index_j++)
-							{
-								THostInfo theOriginalInfo = (THostInfo) mHostInfoVector.elementAt(index_j);
-								if (theInfo.mName.equals(theOriginalInfo.mName))
-								{
-									theOriginalInfo.mLastValidation = ReturnRFCTime(new Date());
-									theOriginalInfo.mStatus = 0;
-									break;
-								}
-							}
-								
-							// If I haven’t found it, it’s that it has been removed while we were checking it.
-						}
-					}
-					else
-					{
-						// the server is down / has magically changed into Apache
-						logMessage(theInfo.mName + " is down (bad reply)");
-						
-						int index_j;
-						
-						synchronized ( mHostInfoVector )
-						{
-							for (index_j = 0; index_j < mHostInfoVector.size(); index_j++)
-							{
-								THostInfo theOriginalInfo = (THostInfo) mHostInfoVector.elementAt(index_j);
-								if (theInfo.mName.equals(theOriginalInfo.mName))
-								{
-									theOriginalInfo.mStatus += 1;
-									break;
-								}
-							}
-						}
-					}
-				}
-				catch (Exception e) 
+	public static boolean writeServers( String inFile )
+	{
+		try {
+			File theFile = new File(inFile);
+			File theTempFile = new File(inFile + ".tmp");
+			FileOutputStream theStream = new FileOutputStream(theTempFile);
+			Writer outcmdfile = new BufferedWriter(new OutputStreamWriter(theStream));
+ 
+			THostInfo[] theHosts = mHostRegistry.Snapshot();
+			for (int index_i = 0; index_i < theHosts.length; index_i++)
+			{
+				THostInfo theInfo = theHosts[index_i];
+				// Don’t save SHARE records
+				if (theInfo.mStatus != -1)
 				{
-					// if there was an exception, we assume the server is down
-					logMessage(theInfo.mName + " is down (timeout / connection refused / other exception) " + e);
-					
-					int index_j;
-					
-					synchronized ( mHostInfoVector )
-					{
-						for (index_j = 0; index_j < mHostInfoVector.size(); index_j++)
-						{
-							THostInfo theOriginalInfo = (THostInfo) mHostInfoVector.elementAt(index_j);
-							if (theInfo.mName.equals(theOriginalInfo.mName))
-							{
-								theOriginalInfo.mStatus += 1;
-								break;
-							}
-						}
-					}
+					outcmdfile.write("[REGUP] " + theInfo.mName + " " + theInfo.mDesc + "\r\n");
+					outcmdfile.write(StatusLine(theInfo) + "\r\n");
 				}
 			}
-		} // for (int foo = 0; foo < theHosts.size(); foo++)
-		
-		// check for servers which we haven’t been able to reach in a while and toast them
-		synchronized (mHostInfoVector)
-		{
-			// for (int foo = 0; foo < mHostInfoVector.size(); foo++)
-			// This should lead to a problem. I’d better start from the end.
-			int theLastIndex = mHostInfoVector.size() - 1;
-			for (int foo = theLastIndex; foo >= 0; foo--)
+			
+			// On disk before it replaces the old file.
+			outcmdfile.flush();
+			theStream.getFD().sync();
+			outcmdfile.close();
+			
+			ReplaceFile(theTempFile, theFile);
+			return true;
+		} catch (IOException e) {
+			logMessage("Can’t write the command file " + inFile + " (" + e + ")");
+			return false;
+		}
+	}
+
+	// ====================================================================	//
+	// boolean writeSnapshot( void ) [static, public]
+	// ====================================================================	//
+	// Writes the registered Newtons to the snapshot (from the persister, with mCmdFileLock held).
+	// Returns false if it couldn’t.
+
+	public static boolean writeSnapshot()
+	{
+		File theFile = new File(cmdfile + ".dat");
+		File theTempFile = new File(cmdfile + ".dat.tmp");
+		try {
+			java.util.zip.CRC32 theChecksum = new java.util.zip.CRC32();
+			FileOutputStream theStream = new FileOutputStream(theTempFile);
+			DataOutputStream theData = new DataOutputStream(new BufferedOutputStream(
+				new java.util.zip.CheckedOutputStream(theStream, theChecksum), 65536));
+			
+			THostInfo[] theHosts = mHostRegistry.Snapshot();
+			int theCount = 0;
+			for (int index_i = 0; index_i < theHosts.length; index_i++)
+				if (theHosts[index_i].mStatus != -1)
+					theCount++;
+			
+			theData.writeInt(kSnapshotMagic);
+			theData.writeInt(kSnapshotVersion);
+			theData.writeLong(System.currentTimeMillis());
+			theData.writeInt(theCount);
+			for (int index_i = 0; index_i < theHosts.length; index_i++)
 			{
-				THostInfo theInfo = (THostInfo) mHostInfoVector.elementAt(foo);
-				if ((theInfo.mStatus > validateTries)
-					|| (theInfo.mStatus == -1))
-				// Remove both down Newtons and shared Newton (as shared Newton will be got later)
-				// (notice: this isn’t a good idea later, we should first check that the other tracker servers
-				// are still running, but as nobody does share, it isn’t really a problem)
-				{
-					logMessage(theInfo.mName + " removed. Too many failed connections.");
-					mHostInfoVector.removeElementAt( foo );
-				}
-			} // for (int foo = theLastIndex; foo >= 0; foo--)
-		} // synchronized (mHostInfoVector)
+				THostInfo theInfo = theHosts[index_i];
+				// Don’t save SHARE records
+				if (theInfo.mStatus == -1)
+					continue;
+				WriteString(theData, theInfo.mName);
+				WriteString(theData, theInfo.mDesc);
+				WriteString(theData, theInfo.mLastValidation);
+				theData.writeInt(theInfo.mStatus);
+			}
+			theData.flush();
+			// (the checksum itself isn’t checksummed)
+			new DataOutputStream(theStream).writeLong(theChecksum.getValue());
+			
+			// On disk before it replaces the old file.
+			theStream.getFD().sync();
+			theData.close();
+			
+			// The snapshot it replaces becomes the previous one (cmdfile followed by .dat.1), read
+			// at startup if this one can’t be. (If I die in between, there is only the previous
+			// one, and the journal, which hasn’t been emptied yet, is read again on top of it.)
+			if (theFile.exists())
+				ReplaceFile(theFile, new File(cmdfile + ".dat.1"));
+			ReplaceFile(theTempFile, theFile);
+			return true;
+		} catch (IOException e) {
+			logMessage("Can’t write the snapshot " + theFile + " (" + e + ")");
+			return false;
+		}
+	}
+	
+	// Replaces a file by another in one step: whoever looks at it, even after a crash, sees the
+	// old file or the new one, never none. (Where the file system can’t do it in one step, it is
+	// replaced the best it can.)
+	private static void ReplaceFile( File inNewFile, File inFile ) throws IOException
+	{
+		try {
+			java.nio.file.Files.move(inNewFile.toPath(), inFile.toPath(),
+				java.nio.file.StandardCopyOption.REPLACE_EXISTING, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+		} catch (java.nio.file.AtomicMoveNotSupportedException e) {
+			java.nio.file.Files.move(inNewFile.toPath(), inFile.toPath(),
+				java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+	
+	private static void WriteString( DataOutputStream out, String inString ) throws IOException
+	{
+		byte[] theBytes = ((inString == null) ? "" : inString).getBytes("UTF-8");
+		out.writeInt(theBytes.length);
+		out.write(theBytes);
+	}
 
-		// retrieve the latest info from other trackers
-		synchronized( mSharingInfoVector )
+	// ====================================================================	//
+	// boolean loadList( String, PrintWriter ) [static, private]
+	// ====================================================================	//
+	// Reads the list at startup: the snapshot (or the cmdfile, if it is newer: it was edited or
+	// exported since, or there is no snapshot yet), then the changes made since the snapshot was
+	// written. If the snapshot can’t be read, the previous one, or else the cmdfile: the changes
+	// made between them and the snapshot are lost, so I say it out loud, and I move the snapshot
+	// aside (cmdfile followed by .dat.bad) so that it doesn’t become the previous one and nothing
+	// is written over it. Returns true in that case.
+
+	private static boolean loadList( String inCmdFile, PrintWriter out ) throws IOException
+	{
+		boolean isFallback = false;
+		File theSnapshot = new File(inCmdFile + ".dat");
+		File thePrevious = new File(inCmdFile + ".dat.1");
+		File theCmdFile = new File(inCmdFile);
+		if (theCmdFile.exists() && (theCmdFile.lastModified() > theSnapshot.lastModified())
+			&& (theCmdFile.lastModified() > thePrevious.lastModified()))
+			loadServers(inCmdFile, out);
+		else if (!loadSnapshot(theSnapshot.getPath()))
 		{
-			for (int foo = 0; foo < mSharingInfoVector.size(); foo++)
+			if (theSnapshot.exists())
 			{
-				TServerInfo theServerInfo = (TServerInfo) mSharingInfoVector.elementAt(foo);
-				logMessage("Making SHARE connection with " + theServerInfo.mHost);
-				try
+				isFallback = true;
+				File theBadSnapshot = new File(inCmdFile + ".dat.bad");
+				try {
+					ReplaceFile(theSnapshot, theBadSnapshot);
+				} catch (IOException e) {
+					logWarning("Can’t move the snapshot " + theSnapshot + " aside (" + e + ")");
+				}
+				logWarning("Can’t read the snapshot " + theSnapshot + ", kept as " + theBadSnapshot);
+			}
+			if (loadSnapshot(thePrevious.getPath()))
+			{
+				if (isFallback)
+					logWarning("Read the previous snapshot " + thePrevious + " instead: the changes made since it was written may be lost");
+			}
+			else
+			{
+				if (isFallback || thePrevious.exists())
 				{
-					Socket theSocket = new Socket(theServerInfo.mHost, Integer.parseInt(theServerInfo.mPort));
-					theSocket.setSoTimeout( kTimeout );	// Won’t wait forever, it would break the server.
-					
-					logMessage("Setting up input and output streams");
-					BufferedReader inshare = new BufferedReader(new InputStreamReader( theSocket.getInputStream()) );
-					PrintWriter outshare = new PrintWriter(new OutputStreamWriter( theSocket.getOutputStream()) );
-					logMessage("Sending SHARE command");
-					outshare.print("SHARE\r\n");
-					outshare.flush();
-					logMessage("Waiting for reply");
-
-					String templine = "", returncode = "";
-					templine = inshare.readLine();
-					while (templine != null)
-					{
-						returncode += templine + "\n";
-						templine = inshare.readLine();
-					}
-
-					logMessage("Received: " + returncode);
-					if (returncode.startsWith("200 OK"))
-					{
-						logMessage("Return code is good. Parsing records.");
+					isFallback = true;
+					logWarning("Read the cmdfile " + inCmdFile + " instead of the snapshot: the changes made since it was written may be lost");
+				}
+				loadServers(inCmdFile, out);
+			}
+		}
+		loadServers(inCmdFile + ".journal", out);
+		return isFallback;
+	}
 
-						StringTokenizer lines = new StringTokenizer(returncode, "\n");
-						while (lines.hasMoreTokens() == true)
-						{
-							StringTokenizer tabs = new StringTokenizer(lines.nextToken(), "\t");
-							String currenttoken = tabs.nextToken();
-							if (currenttoken.startsWith("no-entries"))
-							{
-								logMessage("Remote server has no records.");
-								break;
-							}
-							else if (currenttoken.startsWith("200 OK"))
-							{
-								// go to the next token
-							}
-							else
-							{
-								// take the share record, break up its tokens and add it to the list
-								String addresspair = new String(currenttoken);
-								String timepair = new String(tabs.nextToken());
-								String statuspair = new String(tabs.nextToken());
-								String descpair = new String(tabs.nextToken());
-
-								logMessage(
-									"[SHARE] " + addresspair
-									+ " " + timepair
-									+ " " + statuspair
-									+ " " + descpair );
-
-								THostInfo theNewInfo = new THostInfo();
-								
-								theNewInfo.mName = addresspair.substring(9);
-								theNewInfo.mLastValidation = timepair.substring(15);
-								theNewInfo.mStatus = -1;
-								theNewInfo.mDesc = descpair.substring(13);
-								
-								mHostInfoVector.addElement(theNewInfo);
-							}
-						}
-					}
-					else
-						logMessage("Return code is bad. Not getting any records from this server.");
+	// ====================================================================	//
+	// boolean loadSnapshot( String ) [static, private]
+	// ====================================================================	//
+	// Reads the snapshot at startup, in one read and one pass. The host names are checked when
+	// the Newtons are first validated. Returns false if the file isn’t a snapshot I can read
+	// (then nothing has been added to the list).
 
-					theSocket.close();
-				} catch (IOException e) {;}
-			} // for (int foo = 0; foo < mSharingInfoVector.size(); foo++)
-		} // synchronized( mSharingInfoVector )
-				
-		mLastValidation = ReturnRFCTime(new Date());
-		saveServers();
-		mValidationInProgress -= 1;
-		logMessage("Ending validation of records");
+	private static boolean loadSnapshot( String inFile )
+	{
+		try {
+			FileInputStream theStream = new FileInputStream(inFile);
+			ByteBuffer theBuffer;
+			try {
+				FileChannel theChannel = theStream.getChannel();
+				long theSize = theChannel.size();
+				if ((theSize < 28) || (theSize > Integer.MAX_VALUE))
+					throw new IOException("bad size");
+				theBuffer = ByteBuffer.allocate((int) theSize);
+				while (theBuffer.hasRemaining())
+					if (theChannel.read(theBuffer) == -1)
+						throw new EOFException();
+				theBuffer.flip();
+			} finally {
+				theStream.close();
+			}
+			
+			// Everything but the checksum at the end.
+			byte[] theBytes = theBuffer.array();
+			java.util.zip.CRC32 theChecksum = new java.util.zip.CRC32();
+			theChecksum.update(theBytes, 0, theBytes.length - 8);
+			if (theChecksum.getValue() != theBuffer.getLong(theBytes.length - 8))
+				throw new IOException("bad checksum");
+			if (theBuffer.getInt() != kSnapshotMagic)
+				throw new IOException("not a snapshot");
+			int theVersion = theBuffer.getInt();
+			if (theVersion != kSnapshotVersion)
+				throw new IOException("unknown version " + theVersion);
+			theBuffer.getLong();	// when it was written
+			
+			int theCount = theBuffer.getInt();
+			THostInfo[] theInfos = new THostInfo[theCount];
+			for (int index_i = 0; index_i < theCount; index_i++)
+			{
+				THostInfo theInfo = new THostInfo();
+				theInfo.mName = ReadString(theBuffer);
+				theInfo.mDesc = ReadString(theBuffer);
+				theInfo.mLastValidation = ReadString(theBuffer);
+				theInfo.mStatus = theBuffer.getInt();
+				int theColon = theInfo.mName.indexOf(':');
+				theInfo.mHost = (theColon == -1) ? theInfo.mName : theInfo.mName.substring(0, theColon);
+				theInfo.mPort = (theColon == -1) ? 80 : Integer.parseInt(theInfo.mName.substring(theColon + 1));
+				theInfos[index_i] = theInfo;
+			}
+			
+			// All is well: into the list.
+			for (int index_i = 0; index_i < theCount; index_i++)
+				mHostRegistry.Add(theInfos[index_i]);
+			return true;
+		} catch (FileNotFoundException e) {
+			return false;
+		} catch (Exception e) {
+			logMessage("Can’t read the snapshot " + inFile + " (" + e + ")");
+			return false;
+		}
+	}
+	
+	private static String ReadString( ByteBuffer inBuffer ) throws IOException
+	{
+		byte[] theBytes = new byte[inBuffer.getInt()];
+		inBuffer.get(theBytes);
+		return new String(theBytes, "UTF-8");
 	}
 
 	// ====================================================================	//
-	// void saveServers( void ) [static, private]
+	// void loadServers( String, PrintWriter ) [static, private]
 	// ====================================================================	//
-	// Checks the registered Newtons.
+	// Reads the cmdfile or the journal at startup. [REGUP], [REGDN] and [STATUS] lines are applied
+	// to the list directly (reading a line twice does no harm); host names are checked when the
+	// Newtons are first validated. Any other line is a command, processed as if a client sent it.
 
-	public static void saveServers()
+	private static void loadServers( String inFile, PrintWriter out ) throws IOException
 	{
+		File theFile = new File(inFile);
+		if (!theFile.exists())
+			return;
+		
+		BufferedReader cmdreader = new BufferedReader(new FileReader(theFile));
 		try {
-			FileWriter outcmdfile = new FileWriter(cmdfile, false);
- 
-			synchronized ( mHostInfoVector )
+			String tempcmd;
+			while ((tempcmd = cmdreader.readLine()) != null)
 			{
-				for (int foo = 0; foo < mHostInfoVector.size(); foo++)
+				if (tempcmd.startsWith("[REGUP] "))
 				{
-					THostInfo theInfo = (THostInfo) mHostInfoVector.elementAt(foo);
-					// Don’t save SHARE records
-					if (theInfo.mStatus != -1)
-					{
-						String templine = "[REGUP] " + theInfo.mHost;
-						if (theInfo.mPort != 80)
+					int theSpace = tempcmd.indexOf(' ', 8);
+					if (theSpace == -1)
+						theSpace = tempcmd.length();
+					THostInfo theInfo = new THostInfo();
+					theInfo.mName = tempcmd.substring(8, theSpace);
+					theInfo.mDesc = tempcmd.substring(Math.min(theSpace + 1, tempcmd.length()));
+					int theColon = theInfo.mName.indexOf(':');
+					theInfo.mHost = (theColon == -1) ? theInfo.mName : theInfo.mName.substring(0, theColon);
+					theInfo.mPort = 80;
+					try {
+						if (theColon != -1)
+							theInfo.mPort = Integer.parseInt(theInfo.mName.substring(theColon + 1));
+					} catch (NumberFormatException theException) {
+						logMessage("Skipping \"" + tempcmd + "\" in " + inFile + " (bad port)");
+						continue;
+					}
+					theInfo.mLastValidation = ReturnRFCTime(new Date());
+					theInfo.mStatus = 0;
+					
+					// Already there (read again): only the description may have changed.
+					THostInfo theOldInfo = mHostRegistry.Get(theInfo.mName);
+					if (theOldInfo != null)
+						theOldInfo.mDesc = theInfo.mDesc;
+					else
+						mHostRegistry.Add(theInfo);
+				}
+				else if (tempcmd.startsWith("[REGDN] "))
+				{
+					mHostRegistry.Remove(tempcmd.substring(8).trim());
+				}
+				else if (tempcmd.startsWith("[STATUS] "))
+				{
+					StringTokenizer theTokens = new StringTokenizer(tempcmd.substring(9), " ");
+					try {
+						THostInfo theInfo = mHostRegistry.Get(theTokens.nextToken());
+						int theStatus = Integer.parseInt(theTokens.nextToken());
+						if (theInfo != null)
 						{
-							templine = templine + ":" + theInfo.mPort;
+							theInfo.mStatus = theStatus;
+							if (theTokens.hasMoreTokens())
+								theInfo.mLastValidation = theTokens.nextToken("").trim();
 						}
-						templine = templine + " " + theInfo.mDesc;
-						outcmdfile.write(templine + "\r\n");
+					} catch (RuntimeException theException) {
+						logMessage("Skipping \"" + tempcmd + "\" in " + inFile);
 					}
 				}
-			} // synchronized ( mHostInfoVector )
-			
-			outcmdfile.flush();
-			outcmdfile.close();
-		} catch (IOException e) {
-			System.out.println("   [FATAL] Can’t write to log file: " + cmdfile);
+				else if (tempcmd.length() > 0)
+					ProcessQuery(tempcmd, null, out, null);
+			}
+		} finally {
+			cmdreader.close();
 		}
 	}
 }
@@ -0,0 +1,142 @@
+// ============================================================	//
+// ProbeEngineCheck
+// ============================================================	//
+// Checks that the probe engine drains: every check submitted ends, with the right verdict, even
+// when only one may run at a time and each one ends in the same pass as it started (a refused
+// connection) or as it is answered. The engine used to stall in that case. Also checks that a
+// check that gets no answer is given up at its deadline, and that the next one then runs.
+// From the top of the repository:
+//	javac -encoding UTF-8 -d checks npdstracker.java tests/*.java
+//	java -cp checks ProbeEngineCheck
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ProbeEngineCheck
+{
+	// How long the checks may take in all (in milliseconds)
+	public static final int kDeadline = 10000;
+
+	private static int mFailures = 0;
+	// The connections of the Newtons that never answer (kept open)
+	private static Vector mSilent = new Vector();
+
+	public static void main( String[] args ) throws Exception
+	{
+		npdstracker.logVerbose = false;
+		npdstracker.validateConcurrency = 1;
+		npdstracker.connectTimeout = 2000;
+		npdstracker.readTimeout = 2000;
+
+		// A Newton that answers, one that answers wrong, and a port nobody listens to.
+		int theUp = Newton( "HTTP/1.0 202 Accepted\r\nContent-type: text/x-npds\r\n\r\nnpds-status: SERVER_ALIVE_WELL\r\n" );
+		int theBad = Newton( "HTTP/1.0 404 Not Found\r\n\r\nnope" );
+		ServerSocket theClosed = new ServerSocket( 0, 1, InetAddress.getByName( "127.0.0.1" ) );
+		int theRefused = theClosed.getLocalPort();
+		theClosed.close();
+
+		npdstracker.mProbeEngine = new npdstracker.TProbeEngine();
+		npdstracker.mProbeEngine.setDaemon( true );
+		npdstracker.mProbeEngine.start();
+
+		int[] thePorts = { theRefused, theUp, theRefused, theBad, theUp, theRefused, theRefused, theUp };
+		boolean[] theExpected = { false, true, false, false, true, false, false, true };
+		npdstracker.THostInfo[] theInfos = new npdstracker.THostInfo[thePorts.length];
+		CountDownLatch theDone = new CountDownLatch( thePorts.length );
+		for (int index_i = 0; index_i < thePorts.length; index_i++)
+		{
+			npdstracker.THostInfo theInfo = Info( thePorts[index_i], "check " + index_i );
+			theInfos[index_i] = theInfo;
+			npdstracker.mProbeEngine.Submit( new npdstracker.TProbe( theInfo, theDone, false ) );
+		}
+
+		Check( theDone.await( kDeadline, TimeUnit.MILLISECONDS ),
+			"every check ends (" + (thePorts.length - theDone.getCount()) + " of " + thePorts.length + ")" );
+		for (int index_i = 0; index_i < thePorts.length; index_i++)
+		{
+			int theStatus = theInfos[index_i].mStatus;
+			Check( theStatus == (theExpected[index_i] ? 0 : 2), "check " + index_i + " finds the Newton " + (theExpected[index_i] ? "up" : "down") );
+		}
+
+		// Once idle, the engine still takes new checks.
+		CountDownLatch theLast = new CountDownLatch( 1 );
+		npdstracker.THostInfo theInfo = Info( theUp, "last" );
+		npdstracker.mProbeEngine.Submit( new npdstracker.TProbe( theInfo, theLast, false ) );
+		Check( theLast.await( kDeadline, TimeUnit.MILLISECONDS ) && (theInfo.mStatus == 0), "a check submitted later ends" );
+
+		// A Newton that never answers holds the only slot until its deadline.
+		int theSilent = Newton( null );
+		CountDownLatch theTimedOut = new CountDownLatch( 2 );
+		npdstracker.THostInfo theSilentInfo = Info( theSilent, "silent" );
+		npdstracker.THostInfo theNextInfo = Info( theUp, "after silent" );
+		long theStart = System.currentTimeMillis();
+		npdstracker.mProbeEngine.Submit( new npdstracker.TProbe( theSilentInfo, theTimedOut, false ) );
+		npdstracker.mProbeEngine.Submit( new npdstracker.TProbe( theNextInfo, theTimedOut, false ) );
+		Check( theTimedOut.await( kDeadline, TimeUnit.MILLISECONDS ), "a check without an answer is given up" );
+		long theElapsed = System.currentTimeMillis() - theStart;
+		Check( (theSilentInfo.mStatus == 2) && (theElapsed >= npdstracker.readTimeout), "it is found down at its deadline (" + theElapsed + " ms)" );
+		Check( theNextInfo.mStatus == 0, "the next check runs after it" );
+
+		if (mFailures > 0)
+		{
+			System.out.println( mFailures + " check(s) failed" );
+			System.exit( 1 );
+		}
+		System.out.println( "All checks passed" );
+		System.exit( 0 );
+	}
+
+	// Makes a record for a check (with a status of 1, so that a check that never ran is neither
+	// up nor down).
+	private static npdstracker.THostInfo Info( int inPort, String inWhat )
+	{
+		npdstracker.THostInfo theInfo = new npdstracker.THostInfo();
+		theInfo.mName = "127.0.0.1:" + inPort + "/" + inWhat;
+		theInfo.mHost = "127.0.0.1";
+		theInfo.mPort = inPort;
+		theInfo.mDesc = inWhat;
+		theInfo.mStatus = 1;
+		return theInfo;
+	}
+
+	// Starts a fake Newton that sends inReply to whoever connects, or never answers if it is
+	// null. Returns its port.
+	private static int Newton( final String inReply ) throws IOException
+	{
+		final ServerSocket theServer = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+		Thread theThread = new Thread()
+		{
+			public void run ()
+			{
+				while (true)
+				{
+					try {
+						Socket theSocket = theServer.accept();
+						theSocket.getInputStream().read( new byte[4096] );
+						if (inReply == null)
+						{
+							mSilent.addElement( theSocket );
+							continue;
+						}
+						theSocket.getOutputStream().write( inReply.getBytes() );
+						theSocket.close();
+					} catch (IOException e) {
+						// Next one.
+					}
+				}
+			}
+		};
+		theThread.setDaemon( true );
+		theThread.start();
+		return theServer.getLocalPort();
+	}
+
+	private static void Check( boolean isTrue, String inWhat )
+	{
+		System.out.println( (isTrue ? "ok       " : "FAILED   ") + inWhat );
+		if (!isTrue)
+			mFailures++;
+	}
+}
@@ -0,0 +1,179 @@
+// ============================================================	//
+// ReplayCheck
+// ============================================================	//
+// Checks that the list read back at startup from the snapshot and the journal is the list that
+// was written, that a damaged snapshot is refused without touching the list, and that the
+// previous snapshot is read instead at startup.
+// From the top of the repository:
+//	javac -encoding UTF-8 -d checks npdstracker.java tests/*.java
+//	java -cp checks ReplayCheck
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.util.*;
+
+public class ReplayCheck
+{
+	private static int mFailures = 0;
+
+	public static void main( String[] args ) throws Exception
+	{
+		npdstracker.logVerbose = false;
+		File theDir = java.nio.file.Files.createTempDirectory( "npdscheck" ).toFile();
+		npdstracker.cmdfile = new File( theDir, "npdscmd.txt" ).getPath();
+		String theSnapshot = npdstracker.cmdfile + ".dat";
+		String theJournal = npdstracker.cmdfile + ".journal";
+
+		// The list as it was when the snapshot was written.
+		npdstracker.mHostRegistry = new npdstracker.THostRegistry();
+		Add( "a.example.com", "First Newton", 0, "Sunday, 18-October-2026 08:00:00 GMT" );
+		Add( "b.example.com:8080", "Second Newton", 2, "Sunday, 18-October-2026 08:01:00 GMT" );
+		Add( "c.example.com", "Ünïcödé Newton", 0, "Sunday, 18-October-2026 08:02:00 GMT" );
+		Add( "shared.example.com", "From another tracker", -1, "Sunday, 18-October-2026 08:03:00 GMT" );
+		Check( npdstracker.writeSnapshot(), "the snapshot is written" );
+
+		// The changes made since, as the persister writes them (the first one twice: a line
+		// replayed again must do no harm).
+		Writer theWriter = new FileWriter( theJournal );
+		theWriter.write( "[REGUP] d.example.com:81 New Newton\r\n" );
+		theWriter.write( "[REGUP] d.example.com:81 New Newton\r\n" );
+		theWriter.write( "[REGDN] b.example.com:8080\r\n" );
+		theWriter.write( "[STATUS] c.example.com 1 Sunday, 18-October-2026 08:05:00 GMT\r\n" );
+		theWriter.write( "[STATUS] d.example.com:81 0 Sunday, 18-October-2026 08:06:00 GMT\r\n" );
+		theWriter.write( "[STATUS] gone.example.com 3 Sunday, 18-October-2026 08:07:00 GMT\r\n" );
+		theWriter.close();
+
+		// Startup.
+		npdstracker.mHostRegistry = new npdstracker.THostRegistry();
+		Check( LoadSnapshot( theSnapshot ), "the snapshot is read" );
+		LoadServers( theJournal );
+
+		Map theExpected = new LinkedHashMap();
+		theExpected.put( "a.example.com", "First Newton|0|Sunday, 18-October-2026 08:00:00 GMT|80" );
+		theExpected.put( "c.example.com", "Ünïcödé Newton|1|Sunday, 18-October-2026 08:05:00 GMT|80" );
+		theExpected.put( "d.example.com:81", "New Newton|0|Sunday, 18-October-2026 08:06:00 GMT|81" );
+		Map theActual = new LinkedHashMap();
+		npdstracker.THostInfo[] theHosts = npdstracker.mHostRegistry.Snapshot();
+		for (int index_i = 0; index_i < theHosts.length; index_i++)
+		{
+			npdstracker.THostInfo theInfo = theHosts[index_i];
+			theActual.put( theInfo.mName, theInfo.mDesc + "|" + theInfo.mStatus + "|" + theInfo.mLastValidation + "|" + theInfo.mPort );
+		}
+		Check( theExpected.equals( theActual ), "the list is read back: " + theActual );
+
+		// A damaged snapshot is refused, and nothing is added.
+		RandomAccessFile theFile = new RandomAccessFile( theSnapshot, "rw" );
+		theFile.seek( 30 );
+		theFile.write( theFile.read() ^ 0xFF );
+		theFile.close();
+		npdstracker.mHostRegistry = new npdstracker.THostRegistry();
+		Check( !LoadSnapshot( theSnapshot ), "a damaged snapshot is refused" );
+		Check( npdstracker.mHostRegistry.size() == 0, "a damaged snapshot adds nothing" );
+
+		// So is a truncated one.
+		theFile = new RandomAccessFile( theSnapshot, "rw" );
+		theFile.setLength( theFile.length() / 2 );
+		theFile.close();
+		Check( !LoadSnapshot( theSnapshot ), "a truncated snapshot is refused" );
+
+		// Two snapshots in a row: the first one is kept as the previous one.
+		npdstracker.mHostRegistry = new npdstracker.THostRegistry();
+		Add( "a.example.com", "First Newton", 0, "Sunday, 18-October-2026 08:00:00 GMT" );
+		Check( npdstracker.writeSnapshot(), "a snapshot is written" );
+		Add( "e.example.com", "Later Newton", 0, "Sunday, 18-October-2026 08:10:00 GMT" );
+		Check( npdstracker.writeSnapshot(), "another snapshot is written" );
+		Check( new File( theSnapshot + ".1" ).exists(), "the previous snapshot is kept" );
+
+		// The last one is damaged: the previous one is read, and the damaged one is moved aside.
+		theFile = new RandomAccessFile( theSnapshot, "rw" );
+		theFile.seek( 30 );
+		theFile.write( theFile.read() ^ 0xFF );
+		theFile.close();
+		new FileWriter( theJournal ).close();
+		npdstracker.mHostRegistry = new npdstracker.THostRegistry();
+		Check( LoadList( npdstracker.cmdfile ), "startup says it didn’t read the snapshot" );
+		Check( Names().equals( Collections.singleton( "a.example.com" ) ), "the previous snapshot is read instead: " + Names() );
+		Check( !new File( theSnapshot ).exists() && new File( theSnapshot + ".bad" ).exists(), "the damaged snapshot is moved aside" );
+
+		// The next snapshot doesn’t make the damaged one the previous one.
+		Check( npdstracker.writeSnapshot(), "the next snapshot is written" );
+		npdstracker.mHostRegistry = new npdstracker.THostRegistry();
+		Check( LoadSnapshot( theSnapshot + ".1" ), "the previous snapshot is still readable" );
+
+		// Neither can be read: the cmdfile is.
+		new File( theSnapshot ).delete();
+		new File( theSnapshot + ".1" ).delete();
+		new File( theSnapshot + ".bad" ).delete();
+		new FileWriter( theSnapshot ).close();
+		Writer theCmdWriter = new FileWriter( npdstracker.cmdfile );
+		theCmdWriter.write( "[REGUP] f.example.com From the cmdfile\r\n" );
+		theCmdWriter.close();
+		new File( npdstracker.cmdfile ).setLastModified( new File( theSnapshot ).lastModified() - 60000 );
+		npdstracker.mHostRegistry = new npdstracker.THostRegistry();
+		Check( LoadList( npdstracker.cmdfile ), "startup says it read the cmdfile" );
+		Check( Names().equals( Collections.singleton( "f.example.com" ) ), "the cmdfile is read instead: " + Names() );
+
+		new File( theSnapshot ).delete();
+		new File( theSnapshot + ".bad" ).delete();
+		new File( theJournal ).delete();
+		new File( npdstracker.cmdfile ).delete();
+		theDir.delete();
+		if (mFailures > 0)
+		{
+			System.out.println( mFailures + " check(s) failed" );
+			System.exit( 1 );
+		}
+		System.out.println( "All checks passed" );
+	}
+
+	private static void Add( String inName, String inDesc, int inStatus, String inLastValidation )
+	{
+		npdstracker.THostInfo theInfo = new npdstracker.THostInfo();
+		theInfo.mName = inName;
+		int theColon = inName.indexOf( ':' );
+		theInfo.mHost = (theColon == -1) ? inName : inName.substring( 0, theColon );
+		theInfo.mPort = (theColon == -1) ? 80 : Integer.parseInt( inName.substring( theColon + 1 ) );
+		theInfo.mDesc = inDesc;
+		theInfo.mStatus = inStatus;
+		theInfo.mLastValidation = inLastValidation;
+		npdstracker.mHostRegistry.Add( theInfo );
+	}
+
+	private static Set Names()
+	{
+		Set theNames = new HashSet();
+		npdstracker.THostInfo[] theHosts = npdstracker.mHostRegistry.Snapshot();
+		for (int index_i = 0; index_i < theHosts.length; index_i++)
+			theNames.add( theHosts[index_i].mName );
+		return theNames;
+	}
+
+	// (the tracker only reads these at startup: they are private)
+	private static boolean LoadList( String inCmdFile ) throws Exception
+	{
+		Method theMethod = npdstracker.class.getDeclaredMethod( "loadList", new Class[] { String.class, PrintWriter.class } );
+		theMethod.setAccessible( true );
+		return ((Boolean) theMethod.invoke( null, new Object[] { inCmdFile, new PrintWriter( System.out ) } )).booleanValue();
+	}
+
+	private static boolean LoadSnapshot( String inFile ) throws Exception
+	{
+		Method theMethod = npdstracker.class.getDeclaredMethod( "loadSnapshot", new Class[] { String.class } );
+		theMethod.setAccessible( true );
+		return ((Boolean) theMethod.invoke( null, new Object[] { inFile } )).booleanValue();
+	}
+
+	private static void LoadServers( String inFile ) throws Exception
+	{
+		Method theMethod = npdstracker.class.getDeclaredMethod( "loadServers", new Class[] { String.class, PrintWriter.class } );
+		theMethod.setAccessible( true );
+		theMethod.invoke( null, new Object[] { inFile, new PrintWriter( System.out ) } );
+	}
+
+	private static void Check( boolean isTrue, String inWhat )
+	{
+		System.out.println( (isTrue ? "ok       " : "FAILED   ") + inWhat );
+		if (!isTrue)
+			mFailures++;
+	}
+}
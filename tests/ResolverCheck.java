@@ -0,0 +1,76 @@
+// ============================================================	//
+// ResolverCheck
+// ============================================================	//
+// Checks that a name that stops resolving keeps its last address for dnsTTL seconds, and not
+// longer, and that it gets a whole dnsTTL again once it has resolved in between.
+// From the top of the repository:
+//	javac -encoding UTF-8 -d checks npdstracker.java tests/*.java
+//	java -cp checks ResolverCheck
+
+import java.lang.reflect.*;
+
+public class ResolverCheck
+{
+	private static final String kGoodName = "localhost";
+	// (.invalid never resolves, see RFC 2606)
+	private static final String kBadName = "npds-tracker.invalid";
+
+	private static int mFailures = 0;
+
+	public static void main( String[] args ) throws Exception
+	{
+		npdstracker.logVerbose = false;
+		npdstracker.dnsTTL = 2;
+		npdstracker.dnsNegativeTTL = 0;
+
+		npdstracker.TResolvedHost theEntry = new npdstracker.TResolvedHost( kGoodName );
+		Resolve( theEntry );
+		Check( theEntry.mAddress != null, "the name resolves" );
+
+		// The DNS stops answering for it.
+		theEntry.mHost = kBadName;
+		Resolve( theEntry );
+		Check( theEntry.mAddress != null, "its address is kept after a failure" );
+		Thread.sleep( npdstracker.dnsTTL * 1000L / 2 );
+		Resolve( theEntry );
+		Check( theEntry.mAddress != null, "and still within dnsTTL" );
+		Thread.sleep( npdstracker.dnsTTL * 1000L / 2 + 100 );
+		Resolve( theEntry );
+		Check( theEntry.mAddress == null, "its address is dropped after dnsTTL of failures" );
+
+		// It comes back, then fails again: the failures are counted from the new one.
+		theEntry.mHost = kGoodName;
+		Resolve( theEntry );
+		Check( theEntry.mAddress != null, "it resolves again" );
+		theEntry.mHost = kBadName;
+		Resolve( theEntry );
+		Check( theEntry.mAddress != null, "a new failure keeps the new address" );
+
+		// A name that never resolved has no address.
+		npdstracker.TResolvedHost theUnknown = new npdstracker.TResolvedHost( kBadName );
+		Resolve( theUnknown );
+		Check( theUnknown.mResolved && (theUnknown.mAddress == null), "a name that never resolved has no address" );
+
+		if (mFailures > 0)
+		{
+			System.out.println( mFailures + " check(s) failed" );
+			System.exit( 1 );
+		}
+		System.out.println( "All checks passed" );
+	}
+
+	// Asks the DNS as the resolver threads do.
+	private static void Resolve( npdstracker.TResolvedHost inEntry ) throws Exception
+	{
+		Method theMethod = npdstracker.TResolver.class.getDeclaredMethod( "Resolve", new Class[] { npdstracker.TResolvedHost.class, boolean.class } );
+		theMethod.setAccessible( true );
+		theMethod.invoke( npdstracker.mResolver, new Object[] { inEntry, Boolean.FALSE } );
+	}
+
+	private static void Check( boolean isTrue, String inWhat )
+	{
+		System.out.println( (isTrue ? "ok       " : "FAILED   ") + inWhat );
+		if (!isTrue)
+			mFailures++;
+	}
+}
@@ -0,0 +1,182 @@
+// ============================================================	//
+// ShareTagCheck
+// ============================================================	//
+// Checks that the tag of the SHARE reply only changes with the records that matter (a Newton
+// found up again, with a new Last Verified date, still gets a 304), and that a tracker that
+// keeps getting 304 is asked for all of its records every kFullFetchPeriods periods.
+// From the top of the repository:
+//	javac -encoding UTF-8 -d checks npdstracker.java tests/*.java
+//	java -cp checks ShareTagCheck
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ShareTagCheck
+{
+	private static final String kTag = "5ca1ab1e";
+
+	private static int mFailures = 0;
+
+	public static void main( String[] args ) throws Exception
+	{
+		npdstracker.logVerbose = false;
+		npdstracker.shareEnabled = true;
+		npdstracker.connectTimeout = 2000;
+		npdstracker.readTimeout = 2000;
+
+		// This tracker, with two Newtons up.
+		npdstracker.mHostRegistry = new npdstracker.THostRegistry();
+		npdstracker.THostInfo theFirst = Add( "a.example.com", "First Newton" );
+		npdstracker.THostInfo theSecond = Add( "b.example.com", "Second Newton" );
+		int thePort = Tracker();
+
+		String theTag = Tag( Share( thePort, null ) );
+		Check( theTag != null, "the SHARE reply has a tag: " + theTag );
+		Check( Share( thePort, theTag ).startsWith( "304 " ), "SHARE <tag> gets 304 when nothing changed" );
+
+		// Both are checked again and are still up: only their dates change.
+		npdstracker.ValidationResult( theFirst, true );
+		npdstracker.ValidationResult( theSecond, true );
+		String theReply = Share( thePort, null );
+		Check( theReply.indexOf( theFirst.mLastValidation ) != -1, "the reply has the new dates" );
+		Check( theTag.equals( Tag( theReply ) ), "the tag is the same" );
+		Check( Share( thePort, theTag ).startsWith( "304 " ), "SHARE <tag> still gets 304 after a check that changed nothing" );
+
+		// One of them is found down: that changes the tag.
+		npdstracker.ValidationResult( theSecond, false );
+		Check( Share( thePort, theTag ).startsWith( "200 " ), "SHARE <tag> gets the records once a Newton is down" );
+
+		// The other side: a tracker that always answers 304 to its tag.
+		Vector theCommands = new Vector();
+		npdstracker.TServerInfo theServerInfo = new npdstracker.TServerInfo();
+		theServerInfo.mHost = "127.0.0.1";
+		theServerInfo.mPort = Integer.toString( FakeTracker( theCommands ) );
+		int theFetches = npdstracker.TServerInfo.kFullFetchPeriods + 2;
+		for (int index_i = 0; index_i < theFetches; index_i++)
+		{
+			CountDownLatch theDone = new CountDownLatch( 1 );
+			new npdstracker.TShareFetch( theServerInfo, theDone ).start();
+			theDone.await();
+		}
+		Vector theExpected = new Vector();
+		theExpected.addElement( "SHARE" );
+		for (int index_i = 0; index_i < npdstracker.TServerInfo.kFullFetchPeriods; index_i++)
+			theExpected.addElement( "SHARE " + kTag );
+		theExpected.addElement( "SHARE" );
+		Check( theExpected.equals( theCommands ), "a plain SHARE is sent every " + npdstracker.TServerInfo.kFullFetchPeriods + " periods: " + theCommands );
+		Check( theServerInfo.mFailures == 0, "and every fetch succeeded" );
+
+		if (mFailures > 0)
+		{
+			System.out.println( mFailures + " check(s) failed" );
+			System.exit( 1 );
+		}
+		System.out.println( "All checks passed" );
+	}
+
+	private static npdstracker.THostInfo Add( String inName, String inDesc )
+	{
+		npdstracker.THostInfo theInfo = new npdstracker.THostInfo();
+		theInfo.mName = inName;
+		theInfo.mHost = inName;
+		theInfo.mPort = 80;
+		theInfo.mDesc = inDesc;
+		theInfo.mStatus = 0;
+		theInfo.mLastValidation = "Sunday, 18-October-2026 08:00:00 GMT";
+		npdstracker.mHostRegistry.Add( theInfo );
+		return theInfo;
+	}
+
+	// Sends SHARE (with a tag if there is one) to the tracker and returns its whole reply.
+	private static String Share( int inPort, String inTag ) throws IOException
+	{
+		Socket theSocket = new Socket( "127.0.0.1", inPort );
+		try {
+			theSocket.getOutputStream().write( ((inTag == null) ? "SHARE\r\n" : "SHARE " + inTag + "\r\n").getBytes() );
+			theSocket.getOutputStream().flush();
+			ByteArrayOutputStream theReply = new ByteArrayOutputStream();
+			InputStream theStream = theSocket.getInputStream();
+			byte[] theBuffer = new byte[4096];
+			int theCount;
+			while ((theCount = theStream.read( theBuffer )) != -1)
+				theReply.write( theBuffer, 0, theCount );
+			return theReply.toString();
+		} finally {
+			theSocket.close();
+		}
+	}
+
+	// Returns the tag of the status line of a reply, or null.
+	private static String Tag( String inReply )
+	{
+		int theEnd = inReply.indexOf( "\r\n" );
+		int theStart = inReply.indexOf( " tag=" );
+		if ((theStart == -1) || (theEnd < theStart))
+			return null;
+		return inReply.substring( theStart + 5, theEnd ).trim();
+	}
+
+	// Starts this tracker on a port of its own, as TServer does. Returns the port.
+	private static int Tracker() throws IOException
+	{
+		final ServerSocket theServer = new ServerSocket( 0 );
+		Thread theThread = new Thread()
+		{
+			public void run ()
+			{
+				try {
+					while (true)
+						new Thread( new npdstracker.TConnection( theServer.accept() ) ).start();
+				} catch (IOException e) {
+					// Done.
+				}
+			}
+		};
+		theThread.setDaemon( true );
+		theThread.start();
+		return theServer.getLocalPort();
+	}
+
+	// Starts a fake tracker that answers 304 to SHARE <kTag>, and gives a record with kTag to a
+	// plain SHARE. The commands it gets are added to inCommands. Returns its port.
+	private static int FakeTracker( final Vector inCommands ) throws IOException
+	{
+		final ServerSocket theServer = new ServerSocket( 0 );
+		Thread theThread = new Thread()
+		{
+			public void run ()
+			{
+				try {
+					while (true)
+					{
+						Socket theSocket = theServer.accept();
+						String theCommand = new BufferedReader( new InputStreamReader( theSocket.getInputStream() ) ).readLine();
+						inCommands.addElement( theCommand );
+						String theReply;
+						if (theCommand.equals( "SHARE " + kTag ))
+							theReply = "304 Not Modified tag=" + kTag + "\r\n";
+						else
+							theReply = "200 OK tag=" + kTag + "\r\n"
+								+ "Address: c.example.com\tLast Verified: Sunday, 18-October-2026 08:00:00 GMT\tStatus: UP\tDescription: Shared Newton\r\n";
+						theSocket.getOutputStream().write( theReply.getBytes() );
+						theSocket.close();
+					}
+				} catch (IOException e) {
+					// Done.
+				}
+			}
+		};
+		theThread.setDaemon( true );
+		theThread.start();
+		return theServer.getLocalPort();
+	}
+
+	private static void Check( boolean isTrue, String inWhat )
+	{
+		System.out.println( (isTrue ? "ok       " : "FAILED   ") + inWhat );
+		if (!isTrue)
+			mFailures++;
+	}
+}